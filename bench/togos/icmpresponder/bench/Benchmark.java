@@ -0,0 +1,23 @@
+package togos.icmpresponder.bench;
+
+/**
+ * A single operation to be timed by BenchmarkRunner.
+ */
+public abstract class Benchmark
+{
+	public final String name;
+	
+	public Benchmark( String name ) {
+		this.name = name;
+	}
+	
+	/** Called once before warmup; allocate inputs here, not in op() */
+	public void setUp() throws Exception { }
+	
+	/**
+	 * Perform the operation once.
+	 * Return something derived from the result so that
+	 * the JIT can't optimize the work away.
+	 */
+	public abstract long op() throws Exception;
+}
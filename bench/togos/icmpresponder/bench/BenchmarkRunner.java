@@ -0,0 +1,111 @@
+package togos.icmpresponder.bench;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Runs benchmarks and reports the time and memory
+ * allocated per operation.
+ *
+ * Each benchmark is warmed up, then measured over several rounds,
+ * of which the fastest is reported (slower rounds are usually
+ * GC or something else on the machine getting in the way).
+ * Allocation is measured with the per-thread allocation counter,
+ * which is only available on HotSpot-based VMs; elsewhere it's
+ * reported as -1.
+ */
+public class BenchmarkRunner
+{
+	public long warmupNanos = 1000000000L;
+	public long roundNanos = 500000000L;
+	public int rounds = 5;
+	
+	/** Keeps benchmark results reachable so they can't be optimized out */
+	public static volatile long blackhole;
+	
+	static final com.sun.management.ThreadMXBean threadBean;
+	static {
+		java.lang.management.ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+		threadBean = (tb instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean)tb : null;
+	}
+	
+	static long allocatedBytes() {
+		return threadBean == null ? -1 : threadBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+	
+	public static class Result {
+		public final String name;
+		public final double nanosPerOp;
+		public final double bytesPerOp;
+		
+		public Result( String name, double nanosPerOp, double bytesPerOp ) {
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.bytesPerOp = bytesPerOp;
+		}
+	}
+	
+	protected static long runOps( Benchmark b, long count ) throws Exception {
+		long acc = 0;
+		for( long i=0; i<count; ++i ) acc += b.op();
+		return acc;
+	}
+	
+	/** Figure out how many ops take about the given amount of time */
+	protected static long calibrate( Benchmark b, long nanos ) throws Exception {
+		long count = 1;
+		while( true ) {
+			long t0 = System.nanoTime();
+			blackhole += runOps( b, count );
+			long elapsed = System.nanoTime() - t0;
+			if( elapsed >= nanos / 4 ) return Math.max( 1, (long)((double)count * nanos / elapsed) );
+			count *= 2;
+		}
+	}
+	
+	public Result run( Benchmark b ) throws Exception {
+		b.setUp();
+		long warmupCount = calibrate( b, warmupNanos );
+		blackhole += runOps( b, warmupCount );
+		
+		long count = calibrate( b, roundNanos );
+		double bestNanosPerOp = Double.MAX_VALUE;
+		double bytesPerOp = -1;
+		for( int r=0; r<rounds; ++r ) {
+			long a0 = allocatedBytes();
+			long t0 = System.nanoTime();
+			blackhole += runOps( b, count );
+			long elapsed = System.nanoTime() - t0;
+			long a1 = allocatedBytes();
+			bestNanosPerOp = Math.min( bestNanosPerOp, (double)elapsed / count );
+			if( a0 >= 0 ) {
+				double roundBytesPerOp = (double)(a1 - a0) / count;
+				bytesPerOp = bytesPerOp < 0 ? roundBytesPerOp : Math.min( bytesPerOp, roundBytesPerOp );
+			}
+		}
+		return new Result( b.name, bestNanosPerOp, bytesPerOp );
+	}
+	
+	public static void printHeader( PrintStream out ) {
+		out.println( String.format("%-40s %14s %14s", "Benchmark", "ns/op", "B/op") );
+	}
+	
+	public static void print( Result r, PrintStream out ) {
+		out.println( String.format("%-40s %14.1f %14.1f", r.name, r.nanosPerOp, r.bytesPerOp) );
+	}
+	
+	/**
+	 * Run all the benchmarks whose names contain one of the filters
+	 * (or all of them, if there are no filters).
+	 */
+	public void runAll( List<Benchmark> benchmarks, String[] filters, PrintStream out ) throws Exception {
+		printHeader( out );
+		for( Benchmark b : benchmarks ) {
+			boolean selected = filters.length == 0;
+			for( String f : filters ) if( b.name.contains(f) ) selected = true;
+			if( !selected ) continue;
+			print( run(b), out );
+		}
+	}
+}
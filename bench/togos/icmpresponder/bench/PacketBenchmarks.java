@@ -0,0 +1,195 @@
+package togos.icmpresponder.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import togos.icmpresponder.FlowKey;
+import togos.icmpresponder.FlowTable;
+import togos.icmpresponder.IPPacketHandler;
+import togos.icmpresponder.InternetChecksum;
+import togos.icmpresponder.SimpleSocketAddressPair;
+import togos.icmpresponder.Sink;
+import togos.icmpresponder.packet.ICMP6Message;
+import togos.icmpresponder.packet.IP6Decoder;
+import togos.icmpresponder.packet.IPPacket;
+import togos.icmpresponder.packet.TCPDecoder;
+import togos.icmpresponder.packet.TCPSegment;
+import togos.icmpresponder.tcp.AckTemplate;
+import togos.icmpresponder.tcp.TCPFlags;
+
+/**
+ * Benchmarks of the packet parsing, checksumming, creation,
+ * and handling paths.
+ *
+ * Compile src and bench together and run
+ *
+ *   java -cp <classes> togos.icmpresponder.bench.PacketBenchmarks [name-filter ...]
+ *
+ * to run all benchmarks, or just the ones whose names contain
+ * any of the given filters.
+ */
+public class PacketBenchmarks
+{
+	static final byte[] ADDRESS_A = new byte[]{ 0x20, 0x20, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+	static final byte[] ADDRESS_B = new byte[]{ 0x20, 0x20, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2 };
+	
+	static final Sink<IPPacket> NULL_SINK = new Sink<IPPacket>() {
+		public void give( IPPacket p ) {
+			BenchmarkRunner.blackhole += p.getSize();
+		}
+	};
+	
+	static byte[] payload( int size ) {
+		byte[] data = new byte[size];
+		for( int i=0; i<size; ++i ) data[i] = (byte)(i * 31 + 7);
+		return data;
+	}
+	
+	static byte[] echoRequest( int payloadSize ) {
+		byte[] data = payload( payloadSize );
+		return ICMP6Message.create( ADDRESS_A, 0, ADDRESS_B, 0, 64, 128, 0, data, 0, data.length ).ipPacket.getBuffer();
+	}
+	
+	static byte[] tcpPacket( int flags, int payloadSize ) {
+		byte[] data = payload( payloadSize );
+		return TCPSegment.createV6( ADDRESS_A, 0, 12345, ADDRESS_B, 0, 7, 1000, 0, flags, 10000, data, 0, data.length ).ipPacket.getBuffer();
+	}
+	
+	static Benchmark checksum( final int size ) {
+		return new Benchmark( "checksum-"+size ) {
+			final byte[] buf = payload( size );
+			public long op() {
+				return InternetChecksum.checksum( buf );
+			}
+		};
+	}
+	
+	/**
+	 * Hands a packet to a fresh-for-each-benchmark IPPacketHandler.
+	 * The template is copied into a work buffer each time since
+	 * handlers are allowed to scribble on the packets they're given.
+	 * If there's a cleanup packet, that's handed over after each one,
+	 * e.g. to get rid of state the first one left behind.
+	 */
+	static Benchmark handle( String name, final byte[] template, final byte[] cleanup ) {
+		return new Benchmark( name ) {
+			final byte[] work = new byte[Math.max( template.length, cleanup == null ? 0 : cleanup.length )];
+			IPPacketHandler handler;
+			public void setUp() {
+				handler = new IPPacketHandler( NULL_SINK );
+			}
+			public long op() throws Exception {
+				System.arraycopy( template, 0, work, 0, template.length );
+				handler.give( work, 0, template.length );
+				int r = work[0];
+				if( cleanup != null ) {
+					System.arraycopy( cleanup, 0, work, 0, cleanup.length );
+					handler.give( work, 0, cleanup.length );
+				}
+				return r;
+			}
+		};
+	}
+	
+	static Benchmark handle( String name, final byte[] template ) {
+		return handle( name, template, null );
+	}
+	
+	public static List<Benchmark> all() {
+		List<Benchmark> l = new ArrayList<Benchmark>();
+		
+		// Inputs to the parse benchmarks are read from volatile fields
+		// so that the JIT can't hoist the (otherwise loop-invariant) work
+		final byte[] tcpPacket = tcpPacket( TCPFlags.ACK, 1000 );
+		l.add( new Benchmark("ip6-parse") {
+			volatile byte[] input = tcpPacket;
+			public long op() {
+				byte[] buf = input;
+				return IPPacket.parse( buf, 0, buf.length ).getPayloadSize();
+			}
+		});
+		l.add( new Benchmark("tcp-parse") {
+			volatile IPPacket input = IPPacket.parse( tcpPacket, 0, tcpPacket.length );
+			public long op() {
+				return TCPSegment.parse( input ).dataSize;
+			}
+		});
+		l.add( new Benchmark("ip6-tcp-decode") {
+			volatile byte[] input = tcpPacket;
+			final IP6Decoder ip = new IP6Decoder();
+			final TCPDecoder tcp = new TCPDecoder();
+			public long op() {
+				byte[] buf = input;
+				ip.wrap( buf, 0, buf.length );
+				tcp.wrap( ip );
+				return tcp.getDataSize() + tcp.getSequenceNumber();
+			}
+		});
+		// One client with lots of connections open, which is the case
+		// that hashing without the ports used to fall over on
+		l.add( new Benchmark("flow-lookup-50000") {
+			final FlowTable<Integer> table = new FlowTable<Integer>();
+			int port;
+			public void setUp() {
+				FlowKey k = new FlowKey();
+				for( int i=0; i<50000; ++i ) {
+					table.put( k.set( tcpPacket, 8, 10000+i, 24, 7 ), i );
+				}
+			}
+			public long op() {
+				port = (port + 1) % 50000;
+				return table.get( tcpPacket, 8, 10000+port, 24, 7 );
+			}
+		});
+		
+		l.add( checksum(1500) );
+		l.add( checksum(9000) );
+		
+		final byte[] echoPayload = payload( 56 );
+		l.add( new Benchmark("icmp6-create-56") {
+			public long op() {
+				return ICMP6Message.create( ADDRESS_A, 0, ADDRESS_B, 0, 64, 129, 0, echoPayload, 0, echoPayload.length ).icmpChecksum;
+			}
+		});
+		final byte[] tcpPayload = payload( 1000 );
+		l.add( new Benchmark("tcp-create-v6-1000") {
+			public long op() {
+				return TCPSegment.createV6( ADDRESS_B, 0, 7, ADDRESS_A, 0, 12345, 5000, 1001, TCPFlags.ACK, 32768, tcpPayload, 0, tcpPayload.length ).checksum;
+			}
+		});
+		l.add( new Benchmark("tcp-encode-v6-1000") {
+			final byte[] buf = new byte[2048];
+			public long op() {
+				return TCPSegment.encodeV6( buf, 0, ADDRESS_B, 0, 7, ADDRESS_A, 0, 12345, 5000, 1001, TCPFlags.ACK, 32768, null, 0, 0, tcpPayload, 0, tcpPayload.length );
+			}
+		});
+		// Pure acks, encoded from scratch vs. patched into a template
+		l.add( new Benchmark("tcp-ack-encode-v6") {
+			final byte[] buf = new byte[2048];
+			int ack;
+			public long op() {
+				return TCPSegment.encodeV6( buf, 0, ADDRESS_B, 0, 7, ADDRESS_A, 0, 12345, 5000, ack += 1000, TCPFlags.ACK, 32768, null, 0, 0, null, 0, 0 );
+			}
+		});
+		l.add( new Benchmark("tcp-ack-template-v6") {
+			final AckTemplate template = new AckTemplate( new SimpleSocketAddressPair( 6, ADDRESS_B, 7, ADDRESS_A, 12345 ), false );
+			int ack;
+			public long op() {
+				template.update( 5000, ack += 1000, 32768, 0, 0 );
+				return template.packet[AckTemplate.CHECKSUM_OFFSET];
+			}
+		});
+		
+		l.add( handle("handler-echo-56", echoRequest(56)) );
+		l.add( handle("handler-echo-1400", echoRequest(1400)) );
+		// A whole (tiny) connection per op: SYN+data+FIN in, SYN+ACK+data+FIN echoed back,
+		// then an RST so that the next op's SYN is for a new connection rather than a repeat
+		l.add( handle("handler-tcp-echo", tcpPacket(TCPFlags.SYN|TCPFlags.FIN, 6), tcpPacket(TCPFlags.RST, 0)) );
+		
+		return l;
+	}
+	
+	public static void main( String[] args ) throws Exception {
+		new BenchmarkRunner().runAll( all(), args, System.out );
+	}
+}
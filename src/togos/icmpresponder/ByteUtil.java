@@ -1,5 +1,9 @@
 package togos.icmpresponder;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 import togos.blob.ByteChunk;
 
 public class ByteUtil {
@@ -36,6 +40,13 @@ public class ByteUtil {
 		buffer[offset+1] = (byte)(value >> 0);
 	}
 	
+	static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle( long[].class, ByteOrder.BIG_ENDIAN );
+	
+	/** Reads all 8 bytes in one go rather than one at a time */
+	public static long decodeInt64( byte[] buffer, int offset ) {
+		return (long)LONG_BE.get( buffer, offset );
+	}
+	
 	public static int decodeUInt16( byte[] buffer, int offset ) {
 		return
 			((buffer[offset + 0]&0xFF) << 8) |
@@ -0,0 +1,112 @@
+package togos.icmpresponder;
+
+/**
+ * Packed (source address, source port, destination address, destination port)
+ * key for a flow: addresses as pairs of longs, ports and IP version as ints.
+ * 
+ * Mutable, so that one instance can be re-set from packet after packet
+ * for lookups; make a copy() of one to store it.
+ * IPv4 addresses (should we ever see any) go in the low halves.
+ */
+public final class FlowKey
+{
+	public int ipVersion;
+	public long sourceHi, sourceLo, destHi, destLo;
+	/** (source port << 16) | destination port */
+	public int ports;
+	
+	/** Set from IPv6 addresses at the given offsets of buf */
+	public FlowKey set( byte[] buf, int sourceOffset, int sourcePort, int destOffset, int destPort ) {
+		return set( buf, sourceOffset, sourcePort, buf, destOffset, destPort );
+	}
+	
+	public FlowKey set( byte[] sBuf, int sOff, int sPort, byte[] dBuf, int dOff, int dPort ) {
+		this.ipVersion = 6;
+		this.sourceHi = ByteUtil.decodeInt64( sBuf, sOff );
+		this.sourceLo = ByteUtil.decodeInt64( sBuf, sOff+8 );
+		this.destHi = ByteUtil.decodeInt64( dBuf, dOff );
+		this.destLo = ByteUtil.decodeInt64( dBuf, dOff+8 );
+		this.ports = (sPort << 16) | (dPort & 0xFFFF);
+		return this;
+	}
+	
+	public FlowKey set( SocketAddressPair sap ) {
+		if( sap.getIpVersion() == 4 ) {
+			this.ipVersion = 4;
+			this.sourceHi = this.destHi = 0;
+			this.sourceLo = ByteUtil.decodeInt32( sap.getSourceAddressBuffer(), sap.getSourceAddressOffset() ) & 0xFFFFFFFFL;
+			this.destLo = ByteUtil.decodeInt32( sap.getDestinationAddressBuffer(), sap.getDestinationAddressOffset() ) & 0xFFFFFFFFL;
+			this.ports = (sap.getSourcePort() << 16) | (sap.getDestinationPort() & 0xFFFF);
+			return this;
+		}
+		return set(
+			sap.getSourceAddressBuffer(), sap.getSourceAddressOffset(), sap.getSourcePort(),
+			sap.getDestinationAddressBuffer(), sap.getDestinationAddressOffset(), sap.getDestinationPort() );
+	}
+	
+	public FlowKey set( FlowKey k ) {
+		this.ipVersion = k.ipVersion;
+		this.sourceHi = k.sourceHi; this.sourceLo = k.sourceLo;
+		this.destHi = k.destHi; this.destLo = k.destLo;
+		this.ports = k.ports;
+		return this;
+	}
+	
+	public FlowKey copy() {
+		return new FlowKey().set( this );
+	}
+	
+	public int getSourcePort() { return ports >>> 16; }
+	public int getDestinationPort() { return ports & 0xFFFF; }
+	
+	/**
+	 * All of the key goes into the hash, ports included, and it's mixed
+	 * well enough that keys differing only in a port spread evenly
+	 * over a power-of-two-sized table.
+	 */
+	public static int hash( int ipVersion, long sourceHi, long sourceLo, long destHi, long destLo, int ports ) {
+		long h = ((long)ports << 8 | ipVersion) * 0x9E3779B97F4A7C15L;
+		h = (h ^ sourceHi) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ sourceLo) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ destHi) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ destLo) * 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 29;
+		return (int)(h ^ (h >>> 32));
+	}
+	
+	/** The hash of the key that set( p ) would make, without making one */
+	public static int hash( SocketAddressPair p ) {
+		byte[] sBuf = p.getSourceAddressBuffer(), dBuf = p.getDestinationAddressBuffer();
+		int sOff = p.getSourceAddressOffset(), dOff = p.getDestinationAddressOffset();
+		int ports = (p.getSourcePort() << 16) | (p.getDestinationPort() & 0xFFFF);
+		if( p.getIpVersion() == 4 ) {
+			return hash( 4,
+				0, ByteUtil.decodeInt32( sBuf, sOff ) & 0xFFFFFFFFL,
+				0, ByteUtil.decodeInt32( dBuf, dOff ) & 0xFFFFFFFFL, ports );
+		}
+		return hash( 6,
+			ByteUtil.decodeInt64( sBuf, sOff ), ByteUtil.decodeInt64( sBuf, sOff+8 ),
+			ByteUtil.decodeInt64( dBuf, dOff ), ByteUtil.decodeInt64( dBuf, dOff+8 ), ports );
+	}
+	
+	public int hashCode() {
+		return hash( ipVersion, sourceHi, sourceLo, destHi, destLo, ports );
+	}
+	
+	public boolean equals( FlowKey k ) {
+		return
+			ports == k.ports && ipVersion == k.ipVersion &&
+			sourceHi == k.sourceHi && sourceLo == k.sourceLo &&
+			destHi == k.destHi && destLo == k.destLo;
+	}
+	
+	public boolean equals( Object o ) {
+		return o instanceof FlowKey && equals( (FlowKey)o );
+	}
+	
+	public String toString() {
+		return "FlowKey(v"+ipVersion+" "+
+			Long.toHexString(sourceHi)+":"+Long.toHexString(sourceLo)+" port "+getSourcePort()+" -> "+
+			Long.toHexString(destHi)+":"+Long.toHexString(destLo)+" port "+getDestinationPort()+")";
+	}
+}
@@ -0,0 +1,150 @@
+package togos.icmpresponder;
+
+/**
+ * Map from flows (see FlowKey) to values, using open addressing
+ * over parallel primitive arrays rather than entry objects.
+ * 
+ * Lookups can be done straight from addresses and ports in a packet
+ * buffer, and neither they nor (apart from when the table grows)
+ * insertions allocate anything.  Collisions are resolved by linear
+ * probing, and removal shifts later entries back rather than leaving
+ * tombstones, so lookups stay fast however much churn there is.
+ * 
+ * Not thread-safe.
+ */
+public class FlowTable<V>
+{
+	/** 4 longs (source hi, lo, dest hi, lo) per slot */
+	protected long[] addresses;
+	protected int[] ports;
+	protected int[] versions;
+	protected int[] hashes;
+	/** null for empty slots */
+	protected Object[] values;
+	protected int mask;
+	protected int size;
+	
+	public FlowTable( int initialCapacity ) {
+		int n = 16;
+		while( n / 2 < initialCapacity ) n <<= 1;
+		allocate( n );
+	}
+	
+	public FlowTable() {
+		this( 16 );
+	}
+	
+	protected void allocate( int slots ) {
+		addresses = new long[slots*4];
+		ports = new int[slots];
+		versions = new int[slots];
+		hashes = new int[slots];
+		values = new Object[slots];
+		mask = slots - 1;
+	}
+	
+	public int size() { return size; }
+	
+	protected int find( int h, int ipVersion, long sHi, long sLo, long dHi, long dLo, int ports ) {
+		for( int i = h & mask; values[i] != null; i = (i+1) & mask ) {
+			if( hashes[i] == h && this.ports[i] == ports && versions[i] == ipVersion ) {
+				int a = i*4;
+				if( addresses[a] == sHi && addresses[a+1] == sLo && addresses[a+2] == dHi && addresses[a+3] == dLo ) return i;
+			}
+		}
+		return -1;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get( FlowKey k ) {
+		int i = find( k.hashCode(), k.ipVersion, k.sourceHi, k.sourceLo, k.destHi, k.destLo, k.ports );
+		return i < 0 ? null : (V)values[i];
+	}
+	
+	/**
+	 * Look up the flow with the IPv6 addresses at the given offsets
+	 * of buf, e.g. those of an incoming packet.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get( byte[] buf, int sourceOffset, int sourcePort, int destOffset, int destPort ) {
+		long sHi = ByteUtil.decodeInt64( buf, sourceOffset ), sLo = ByteUtil.decodeInt64( buf, sourceOffset+8 );
+		long dHi = ByteUtil.decodeInt64( buf, destOffset ), dLo = ByteUtil.decodeInt64( buf, destOffset+8 );
+		int p = (sourcePort << 16) | (destPort & 0xFFFF);
+		int i = find( FlowKey.hash(6, sHi, sLo, dHi, dLo, p), 6, sHi, sLo, dHi, dLo, p );
+		return i < 0 ? null : (V)values[i];
+	}
+	
+	/**
+	 * The key's contents are copied in, so it can be reused afterwards.
+	 * @return the value previously stored for the key, if any
+	 */
+	@SuppressWarnings("unchecked")
+	public V put( FlowKey k, V value ) {
+		if( value == null ) throw new NullPointerException("FlowTable can't store null values");
+		int h = k.hashCode();
+		int i = find( h, k.ipVersion, k.sourceHi, k.sourceLo, k.destHi, k.destLo, k.ports );
+		if( i >= 0 ) {
+			V old = (V)values[i];
+			values[i] = value;
+			return old;
+		}
+		if( (size+1) * 2 > values.length ) grow();
+		i = h & mask;
+		while( values[i] != null ) i = (i+1) & mask;
+		store( i, h, k.ipVersion, k.sourceHi, k.sourceLo, k.destHi, k.destLo, k.ports, value );
+		++size;
+		return null;
+	}
+	
+	protected void store( int i, int h, int ipVersion, long sHi, long sLo, long dHi, long dLo, int ports, Object value ) {
+		int a = i*4;
+		addresses[a] = sHi; addresses[a+1] = sLo; addresses[a+2] = dHi; addresses[a+3] = dLo;
+		this.ports[i] = ports;
+		versions[i] = ipVersion;
+		hashes[i] = h;
+		values[i] = value;
+	}
+	
+	protected void move( int from, int to ) {
+		int a = from*4;
+		store( to, hashes[from], versions[from], addresses[a], addresses[a+1], addresses[a+2], addresses[a+3], ports[from], values[from] );
+		values[from] = null;
+	}
+	
+	/** @return the removed value, or null if there wasn't one */
+	@SuppressWarnings("unchecked")
+	public V remove( FlowKey k ) {
+		int i = find( k.hashCode(), k.ipVersion, k.sourceHi, k.sourceLo, k.destHi, k.destLo, k.ports );
+		if( i < 0 ) return null;
+		V old = (V)values[i];
+		values[i] = null;
+		--size;
+		// Shift back any following entries that would no longer
+		// be found because of the hole (backward-shift deletion)
+		int hole = i;
+		for( int j = (i+1) & mask; values[j] != null; j = (j+1) & mask ) {
+			int home = hashes[j] & mask;
+			// Can the entry at j move into the hole, i.e. is its home
+			// not cyclically within (hole, j]?
+			if( ((j - home) & mask) >= ((j - hole) & mask) ) {
+				move( j, hole );
+				hole = j;
+			}
+		}
+		return old;
+	}
+	
+	protected void grow() {
+		long[] oldAddresses = addresses;
+		int[] oldPorts = ports, oldVersions = versions, oldHashes = hashes;
+		Object[] oldValues = values;
+		allocate( oldValues.length * 2 );
+		for( int j=0; j<oldValues.length; ++j ) {
+			if( oldValues[j] == null ) continue;
+			int i = oldHashes[j] & mask;
+			while( values[i] != null ) i = (i+1) & mask;
+			int a = j*4;
+			store( i, oldHashes[j], oldVersions[j], oldAddresses[a], oldAddresses[a+1], oldAddresses[a+2], oldAddresses[a+3], oldPorts[j], oldValues[j] );
+		}
+	}
+}
@@ -1,69 +1,82 @@
 package togos.icmpresponder;
 
-import java.io.PrintStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 
-import togos.blob.ByteChunk;
+import togos.icmpresponder.log.PacketLog;
 import togos.icmpresponder.packet.ICMP6Message;
-import togos.icmpresponder.packet.IP6Packet;
 import togos.icmpresponder.packet.IPPacket;
-import togos.icmpresponder.packet.TCPSegment;
+import togos.icmpresponder.packet.PacketContext;
+import togos.icmpresponder.stats.ResponderStats;
+import togos.icmpresponder.tcp.CongestionControl;
 import togos.icmpresponder.tcp.TCPSegmentHandler;
 import togos.icmpresponder.tcp.junk.ThreadyTCPServer;
+import togos.icmpresponder.udp.DatagramChannelTunnel;
+import togos.icmpresponder.udp.PeerRoutingTable;
+import togos.icmpresponder.udp.ShardedPacketPipeline;
 
-public class IPPacketHandler implements Sink<IPPacket>
+/**
+ * Handles incoming IP packets, sending any replies to responseSink.
+ * 
+ * Packets may be modified and sent back as their own replies
+ * (this is how echo requests are answered), so callers must not
+ * expect the buffer to be intact afterwards.
+ */
+public class IPPacketHandler implements Sink<IPPacket>, RawPacketSink, TimerDriven
 {
 	public final Sink<IPPacket> responseSink;
+	/** responseSink, if it takes raw packets; otherwise an adapter to it */
+	protected final RawPacketSink rawResponseSink;
+	public PacketLog log = PacketLog.getDefault();
+	public ResponderStats stats = ResponderStats.getDefault();
 	
-	public IPPacketHandler( Sink<IPPacket> responseSink ) {
+	/**
+	 * @param mtu the largest packet the TCP handler will send
+	 */
+	public IPPacketHandler( final Sink<IPPacket> responseSink, int mtu ) {
 		this.responseSink = responseSink;
-	}
-	
-	protected static void dumpPayload( IPPacket p, PrintStream out ) {
-		switch( p.getPayloadProtocolNumber() ) {
-		case( 58 ):
-			ICMP6Message m = ICMP6Message.parse( p );
-			out.println("  ICMP6 message");
-			out.println("    Type: "+m.icmpMessageType );
-			out.println("    Code: "+m.icmpMessageCode );
-			out.println("    Payload size: "+m.getPayload().getSize());
-			out.println("    Checksum: "+m.icmpChecksum );
-			if( m.ipPacket instanceof IP6Packet ) {
-				out.println("    Calculated checksum: "+ICMP6Message.calculateIcmp6Checksum( (IP6Packet)m.ipPacket ));
-			}
-			break;
-		case( 6 ):
-			TCPSegment tm = TCPSegment.parse( p );
-			out.println( "  "+tm.toString() );
-			if( tm.ipPacket instanceof IP6Packet ) {
-				out.println("    Calculated checksum: "+ICMP6Message.calculateIcmp6Checksum( (IP6Packet)tm.ipPacket ));
-				out.println("    Calculated checksum 2: "+TCPSegment.calculateChecksum( tm ));
-			}
-			break;
+		this.tcpHandler = new TCPSegmentHandler( outgoingTcpPacketSink, mtu );
+		if( responseSink instanceof RawPacketSink ) {
+			this.rawResponseSink = (RawPacketSink)responseSink;
+		} else {
+			this.rawResponseSink = new RawPacketSink() {
+				public void give( byte[] buf, int off, int size ) throws Exception {
+					responseSink.give( IPPacket.parse(buf, off, size) );
+				}
+			};
 		}
 	}
 	
-	protected static void dumpPacket( ByteChunk c, PrintStream out ) {
-		IPPacket p = IPPacket.parse( c.getBuffer(), c.getOffset(), c.getSize() );
-		if( p instanceof IP6Packet ) {
-			out.println("IP6 Packet");
-			out.println("  From: "+AddressUtil.formatIp6Address(p.getSourceAddress()));
-			out.println("  To:   "+AddressUtil.formatIp6Address(p.getDestinationAddress()));			
-		} else {
-			out.println("Some non-IP6 packet");
-		}
-		dumpPayload( p, out );
+	public IPPacketHandler( Sink<IPPacket> responseSink ) {
+		this( responseSink, TCPSegmentHandler.DEFAULT_MTU );
 	}
 	
 	protected void tryReply( IPPacket p ) {
+		tryReply( p, p.getBuffer(), p.getOffset(), p.getSize() );
+	}
+	
+	protected void tryReply( byte[] buf, int off, int size ) {
+		tryReply( null, buf, off, size );
+	}
+	
+	/** p, if not null, is the already-parsed packet at buf[off...off+size] */
+	private void tryReply( IPPacket p, byte[] buf, int off, int size ) {
 		try {
-			System.err.print("Sending ");
-			dumpPacket(p, System.err);
-			responseSink.give( p );
+			if( log.shouldLogPacket( PacketLog.DEBUG, buf[off+6] & 0xFF ) ) {
+				log.logPacket( "Sending", buf, off, size );
+			}
+			if( p != null ) {
+				responseSink.give( p );
+			} else {
+				rawResponseSink.give( buf, off, size );
+			}
+			stats.packetsOut.increment();
+			stats.bytesOut.add( size );
 		} catch( Exception e ) {
-			System.err.println("Failed to send reply packet: "+e.getMessage());
+			stats.sendFailures.increment();
+			log.log( PacketLog.ERROR, "Failed to send reply packet: "+e.getMessage() );
 		}
 	}
 	
@@ -72,59 +85,213 @@ public class IPPacketHandler implements Sink<IPPacket>
 			tryReply(s);
 		};
 	};
-	Sink<TCPSegment> outgoingTcpSegmentSink = new Sink<TCPSegment>() {
-		public void give(TCPSegment s) {
-			tryReply(s.ipPacket);
+	RawPacketSink outgoingTcpPacketSink = new RawPacketSink() {
+		public void give( byte[] buf, int off, int size ) {
+			stats.tcpSegmentsOut.increment();
+			tryReply( buf, off, size );
 		};
 	};
 	
-	TCPSegmentHandler tcpHandler = new TCPSegmentHandler( outgoingTcpSegmentSink );
+	final TCPSegmentHandler tcpHandler;
 	ThreadyTCPServer tTcpServer = new ThreadyTCPServer( outgoingPacketSink );
 	
+	/** Reused for every packet; a handler is only used by one thread at a time */
+	final PacketContext ctx = new PacketContext();
+	
+	public void give( byte[] buf, int off, int size ) throws Exception {
+		long startTime = System.nanoTime();
+		stats.packetsIn.increment();
+		stats.bytesIn.add( size );
+		try {
+			handle( buf, off, size );
+		} finally {
+			stats.handlingLatency.record( System.nanoTime() - startTime );
+		}
+	}
+	
 	public void give( IPPacket p ) throws Exception {
-		System.err.print("Received: ");
-		dumpPacket( p, System.err );
+		give( p.getBuffer(), p.getOffset(), p.getSize() );
+	}
+	
+	/** Runs the TCP handler's retransmission etc timers */
+	public void advanceTime( long now ) throws Exception {
+		tcpHandler.advanceTime( now );
+	}
+	
+	public long getTimeUntilNextTimer() {
+		return tcpHandler.getTimeUntilNextTimer();
+	}
+	
+	/**
+	 * Decodes the packet once, into ctx, which is then used for
+	 * logging and dispatch and passed on to the protocol handlers.
+	 * Apart from logging, nothing gets allocated just to look at it.
+	 */
+	protected void handle( byte[] buf, int off, int size ) throws Exception {
+		boolean ok = ctx.decode( buf, off, size );
+		if( log.shouldLogPacket( PacketLog.DEBUG, ctx.getUpperProtocol() ) ) {
+			log.logPacket( "Received:", ctx );
+		}
+		if( !ok ) {
+			stats.malformedPackets.increment();
+			if( log.isEnabled(PacketLog.DEBUG) ) log.log( PacketLog.DEBUG, ctx.getErrorNote() );
+			return;
+		}
 		
-		switch( p.getPayloadProtocolNumber() ) {
+		switch( ctx.getUpperProtocol() ) {
 		case( 6 ):
-			TCPSegment s = TCPSegment.parse( p );
-			if( !s.wellFormed ) return;
-			tcpHandler.give( s );
+			if( !ctx.isChecksumValid() ) {
+				stats.malformedPackets.increment();
+				if( log.isEnabled(PacketLog.DEBUG) ) log.log( PacketLog.DEBUG, "Dropping TCP segment with bad checksum" );
+				return;
+			}
+			stats.tcpSegmentsIn.increment();
+			tcpHandler.handle( ctx );
 			// tTcpServer.handleTcpSegment(s);
 			break;
 		case( 58 ):
-			ICMP6Message m = ICMP6Message.parse( p );
-			if( m.icmpMessageType == 128 ) {
-				ICMP6Message reply = ICMP6Message.create(
-					p.getDestinationAddress(),
-					p.getSourceAddress(), 
-					64, 129, 0, m.getPayload()
-				);
-				tryReply( reply.ipPacket );
+			if( ctx.icmp.getType() == ICMP6Message.ECHO_REQUEST ) {
+				stats.icmpEchoRequests.increment();
+				replyToEchoRequest( ctx );
 			}
 			
 			break;
 		}
 	}
 	
-	static SocketAddress lastReceivedFrom = null;
-	public static void main( String[] args ) throws Exception {
-		final DatagramSocket datagramSocket = new DatagramSocket(7777);
-		final IPPacketHandler handler = new IPPacketHandler( new Sink<IPPacket>() {
-			public void give(IPPacket p) throws Exception {
-				datagramSocket.send( new DatagramPacket(p.getBuffer(), p.getOffset(), p.getSize(), lastReceivedFrom) );
+	/**
+	 * Usually the request is turned into the reply right in its buffer.
+	 * Requests with extension headers (which we wouldn't want to echo
+	 * back) get a new, header-free reply instead.
+	 */
+	protected void replyToEchoRequest( PacketContext ctx ) {
+		byte[] buf = ctx.ip.getBuffer();
+		int off = ctx.ip.getOffset();
+		if( ctx.hasExtensionHeaders() ) {
+			ICMP6Message reply = ICMP6Message.createEchoReply(
+				buf, ctx.ip.getSourceAddressOffset(), ctx.ip.getDestinationAddressOffset(),
+				ctx.icmp.getOffset(), ctx.icmp.getSize(), 64 );
+			stats.icmpEchoReplies.increment();
+			tryReply( reply.ipPacket );
+		} else {
+			int replySize = ICMP6Message.turnIntoEchoReply( buf, off, 64 );
+			stats.icmpEchoReplies.increment();
+			tryReply( buf, off, replySize );
+		}
+	}
+	
+	static void runDatagramSocket( int port, int mtu ) throws Exception {
+		final DatagramSocket datagramSocket = new DatagramSocket(port);
+		final PeerRoutingTable routes = new PeerRoutingTable();
+		class Responder implements Sink<IPPacket>, RawPacketSink {
+			public void give( byte[] buf, int off, int size ) throws Exception {
+				SocketAddress dest = routes.lookupForPacket( buf, off, size, System.currentTimeMillis() );
+				if( dest == null ) {
+					ResponderStats.getDefault().unroutablePackets.increment();
+					PacketLog.getDefault().log( PacketLog.WARN, "No route to packet's destination; dropping it" );
+					return;
+				}
+				datagramSocket.send( new DatagramPacket(buf, off, size, dest) );
 			}
-		});
+			public void give( IPPacket p ) throws Exception {
+				give( p.getBuffer(), p.getOffset(), p.getSize() );
+			}
+		}
+		final IPPacketHandler handler = new IPPacketHandler( new Responder(), mtu );
 		byte[] recvBuffer = new byte[2048];
+		long nextRouteExpiry = 0;
 		while( true ) {
 			DatagramPacket p = new DatagramPacket( recvBuffer, 2048 );
-			datagramSocket.receive(p);
-			lastReceivedFrom = p.getSocketAddress();
+			// Wake up in time for the handler's timers
+			long timeout = handler.getTimeUntilNextTimer();
+			datagramSocket.setSoTimeout( timeout < 0 ? 0 : (int)Math.max( 1, timeout ) );
+			try {
+				datagramSocket.receive(p);
+			} catch( SocketTimeoutException e ) {
+				handler.advanceTime( System.currentTimeMillis() );
+				continue;
+			}
 			byte[] packetBuffer = new byte[p.getLength()];
 			for( int i=packetBuffer.length-1; i>=0; --i ) {
 				packetBuffer[i] = recvBuffer[i];
 			}
-			handler.give( IPPacket.parse( packetBuffer, 0, packetBuffer.length ) );
+			long now = System.currentTimeMillis();
+			routes.learnFromPacket( packetBuffer, 0, packetBuffer.length, p.getSocketAddress(), now );
+			if( now >= nextRouteExpiry ) {
+				routes.expire( now );
+				nextRouteExpiry = now + 10000;
+			}
+			handler.advanceTime( now );
+			handler.give( packetBuffer, 0, packetBuffer.length );
+		}
+	}
+	
+	static void runDatagramChannel( int port, int batchSize, int mtu ) throws Exception {
+		// Twice the batch size, so that replies that aren't written over
+		// their requests can be copied into pool buffers while batching
+		DatagramChannelTunnel tunnel = DatagramChannelTunnel.open( port, batchSize * 2 );
+		if( batchSize > 1 ) {
+			tunnel.runBatched( new IPPacketHandler( tunnel, mtu ), batchSize );
+		} else {
+			tunnel.run( new IPPacketHandler( tunnel, mtu ) );
+		}
+	}
+	
+	static void runSharded( int port, int workerCount, final int mtu ) throws Exception {
+		DatagramChannelTunnel tunnel = DatagramChannelTunnel.open( port, workerCount * 256 );
+		new ShardedPacketPipeline( tunnel, workerCount, 256, new ShardedPacketPipeline.HandlerFactory() {
+			public RawPacketSink createHandler( Sink<IPPacket> responseSink ) {
+				return new IPPacketHandler( responseSink, mtu );
+			}
+		}).run();
+	}
+	
+	public static void main( String[] args ) throws Exception {
+		int port = 7777;
+		boolean nio = false;
+		int batchSize = 1;
+		int workerCount = 0;
+		int mtu = TCPSegmentHandler.DEFAULT_MTU;
+		for( int i=0; i<args.length; ++i ) {
+			if( "-port".equals(args[i]) ) {
+				port = Integer.parseInt(args[++i]);
+			} else if( "-nio".equals(args[i]) ) {
+				nio = true;
+			} else if( "-batch".equals(args[i]) ) {
+				// Implies -nio
+				nio = true;
+				batchSize = Integer.parseInt(args[++i]);
+			} else if( "-workers".equals(args[i]) ) {
+				workerCount = Integer.parseInt(args[++i]);
+			} else if( "-mtu".equals(args[i]) ) {
+				// Largest packets to send back through the tunnel
+				mtu = Integer.parseInt(args[++i]);
+			} else if( "-tcp-congestion-control".equals(args[i]) ) {
+				// newreno or cubic
+				TCPSegmentHandler.defaultCongestionControl = CongestionControl.getFactory( args[++i] );
+			} else if( "-log-level".equals(args[i]) ) {
+				PacketLog.getDefault().setLevel( PacketLog.parseLevel(args[++i]) );
+			} else if( "-log-sample".equals(args[i]) ) {
+				// <protocol number>:<log one out of this many>
+				String[] parts = args[++i].split(":");
+				PacketLog.getDefault().setSampleInterval( Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) );
+			} else {
+				System.err.println("Unrecognized argument: "+args[i]);
+				System.exit(1);
+			}
+		}
+		try {
+			ResponderStats.getDefault().register();
+		} catch( Exception e ) {
+			System.err.println("Failed to register stats MBean: "+e.getMessage());
+		}
+		
+		if( workerCount > 0 ) {
+			runSharded( port, workerCount, mtu );
+		} else if( nio ) {
+			runDatagramChannel( port, batchSize, mtu );
+		} else {
+			runDatagramSocket( port, mtu );
 		}
 	}
 }
@@ -1,5 +1,9 @@
 package togos.icmpresponder;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 // Based on code from
 // http://stackoverflow.com/questions/4113890/how-to-calculate-the-internet-checksum-from-a-byte-in-java
 
@@ -64,19 +68,114 @@ public class InternetChecksum
 		return sum;
 	}
 	
+	static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle( long[].class, ByteOrder.BIG_ENDIAN );
+	static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle( int[].class, ByteOrder.BIG_ENDIAN );
+	
+	/**
+	 * Add the 16-bit big-endian words of buf[offset..offset+length]
+	 * to a running, un-folded one's complement sum, 8 bytes at a time.
+	 * 
+	 * A message can be summed in several pieces (e.g. pseudo-header,
+	 * header, payload) by passing the result of one call in as the sum
+	 * for the next.  If length is odd the last byte is treated as being
+	 * followed by a zero, so only the last piece of a message may have
+	 * an odd length.
+	 * 
+	 * 64-bit words are added as two 32-bit halves so that the long
+	 * accumulator can't overflow for any realistic amount of data;
+	 * carries are only folded back in at the end by fold().
+	 */
+	public static long sum( byte[] buf, int offset, int length, long sum ) {
+		int i = offset;
+		int end = offset + length;
+		while( end - i >= 8 ) {
+			long w = (long)LONG_BE.get( buf, i );
+			sum += (w >>> 32) + (w & 0xFFFFFFFFL);
+			i += 8;
+		}
+		if( end - i >= 4 ) {
+			sum += (int)INT_BE.get( buf, i ) & 0xFFFFFFFFL;
+			i += 4;
+		}
+		if( end - i >= 2 ) {
+			sum += ((buf[i]&0xFF) << 8) | (buf[i+1]&0xFF);
+			i += 2;
+		}
+		if( i < end ) {
+			sum += (buf[i]&0xFF) << 8;
+		}
+		return sum;
+	}
+	
+	/** Fold the carries of a sum from sum() back into 16 bits */
+	public static int fold( long sum ) {
+		sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+		sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		return (int)sum;
+	}
+	
+	/** Turn a sum from sum() into a checksum */
+	public static int finish( long sum ) {
+		return ~fold(sum) & 0xFFFF;
+	}
+	
 	/**
-	 * Shorter version by James Hughes
+	 * Sum of the IPv6 pseudo-header used in upper-layer checksums
+	 * (RFC 2460, section 8.1).  Addresses are read in place.
 	 */
+	public static long ip6PseudoHeaderSum(
+		byte[] sourceAddressBuffer, int sourceAddressOffset,
+		byte[] destAddressBuffer, int destAddressOffset,
+		int upperLayerLength, int nextHeader
+	) {
+		long sum = sum( sourceAddressBuffer, sourceAddressOffset, 16, 0 );
+		sum = sum( destAddressBuffer, destAddressOffset, 16, sum );
+		return sum + (upperLayerLength >>> 16) + (upperLayerLength & 0xFFFF) + nextHeader;
+	}
+	
+	//// Incremental updates (RFC 1624)
+	
+	/**
+	 * Adjust a checksum for one 16-bit word of the checksummed data
+	 * having changed from oldWord to newWord, using RFC 1624 eqn. 3:
+	 * HC' = ~(~HC + ~m + m').
+	 * Cost is constant regardless of how much data was checksummed.
+	 */
+	public static int update16( int checksum, int oldWord, int newWord ) {
+		return finish( (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF) );
+	}
+	
+	/** Like update16, but for a 32-bit (two-word) field such as a TCP sequence number */
+	public static int update32( int checksum, int oldValue, int newValue ) {
+		return finish(
+			(~checksum & 0xFFFF) +
+			(~oldValue >>> 16) + (~oldValue & 0xFFFF) +
+			(newValue >>> 16) + (newValue & 0xFFFF) );
+	}
+	
+	/**
+	 * Update the checksum stored at buf[checksumOffset] to account
+	 * for a 16-bit word having changed from oldWord to newWord.
+	 */
+	public static void patch16( byte[] buf, int checksumOffset, int oldWord, int newWord ) {
+		int checksum = ByteUtil.decodeUInt16( buf, checksumOffset );
+		ByteUtil.encodeInt16( update16(checksum, oldWord, newWord), buf, checksumOffset );
+	}
+	
+	/** Like patch16, but for a 32-bit field */
+	public static void patch32( byte[] buf, int checksumOffset, int oldValue, int newValue ) {
+		int checksum = ByteUtil.decodeUInt16( buf, checksumOffset );
+		ByteUtil.encodeInt16( update32(checksum, oldValue, newValue), buf, checksumOffset );
+	}
+	
+	public static long checksum( byte[] buf, int offset, int length ) {
+		return finish( sum(buf, offset, length, 0) );
+	}
+	
 	public static long checksum(byte[] buf, int length) {
-	    int i = 0;
-	    long sum = 0;
-	    while (length > 0) {
-	        sum += (buf[i++]&0xff) << 8;
-	        if ((--length)==0) break;
-	        sum += (buf[i++]&0xff);
-	        --length;
-	    }
-	    return (~((sum & 0xFFFF)+(sum >> 16)))&0xFFFF;
+		return checksum( buf, 0, length );
 	}
 	
 	public static long checksum( byte[] buf ) {
@@ -0,0 +1,10 @@
+package togos.icmpresponder;
+
+/**
+ * Takes IP packets as plain buffer ranges, so that
+ * no IPPacket object needs to be created to pass one along.
+ */
+public interface RawPacketSink
+{
+	public void give( byte[] buffer, int offset, int size ) throws Exception;
+}
@@ -47,6 +47,19 @@ public class SimpleSocketAddressPair implements SocketAddressPair
 		);
 	}
 	
+	/**
+	 * @return a SimpleSocketAddressPair with its own copies of the addresses,
+	 * safe to hold onto after the buffer sap refers to has been reused.
+	 */
+	public static SimpleSocketAddressPair copyOf( SocketAddressPair sap ) {
+		int aLen = addressLength(sap.getIpVersion());
+		return new SimpleSocketAddressPair(
+			sap.getIpVersion(),
+			BlobUtil.slice( sap.getSourceAddressBuffer(), sap.getSourceAddressOffset(), aLen ), sap.getSourcePort(),
+			BlobUtil.slice( sap.getDestinationAddressBuffer(), sap.getDestinationAddressOffset(), aLen ), sap.getDestinationPort()
+		);
+	}
+	
 	public int getIpVersion() {  return ipVersion;  }
 	public byte[] getDestinationAddressBuffer() {  return dBuf;  }
 	public int getDestinationAddressOffset() {  return dOff;  }
@@ -63,21 +76,17 @@ public class SimpleSocketAddressPair implements SocketAddressPair
 		}
 	}
 	
+	/** Same as the hash code of the corresponding FlowKey */
 	public static int hashCode( SocketAddressPair p ) {
-		int ipVersion = p.getIpVersion();
-		int aLen = addressLength(ipVersion);
-		int h = ipVersion;
-		h = (h << 13) | (h >> 19);
-		h += BlobUtil.hashCode( p.getSourceAddressBuffer(), p.getSourceAddressOffset(), aLen );
-		h = (h << 13) | (h >> 19);
-		h += BlobUtil.hashCode( p.getDestinationAddressBuffer(), p.getDestinationAddressOffset(), aLen );
-		return h;
+		return FlowKey.hash( p );
 	}
 	
 	public static boolean equals( SocketAddressPair p1, SocketAddressPair p2 ) {
 		int aLen = addressLength(p1.getIpVersion());
 		return 
 			p1.getIpVersion() == p2.getIpVersion() &&
+			p1.getSourcePort() == p2.getSourcePort() &&
+			p1.getDestinationPort() == p2.getDestinationPort() &&
 			BlobUtil.equals( p1.getSourceAddressBuffer(), p1.getSourceAddressOffset(), p2.getSourceAddressBuffer(), p2.getSourceAddressOffset(), aLen ) &&
 			BlobUtil.equals( p1.getDestinationAddressBuffer(), p1.getDestinationAddressOffset(), p2.getDestinationAddressBuffer(), p2.getDestinationAddressOffset(), aLen );
 	}
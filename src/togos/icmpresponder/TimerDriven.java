@@ -0,0 +1,16 @@
+package togos.icmpresponder;
+
+/**
+ * Something with timers that need to be fired by whichever
+ * thread is feeding it packets.
+ */
+public interface TimerDriven
+{
+	/** Fire any timers that have come due by now (milliseconds, System.currentTimeMillis() clock) */
+	public void advanceTime( long now ) throws Exception;
+	/**
+	 * @return how long the driving thread may wait for packets
+	 *   before it should call advanceTime, or -1 for as long as it likes
+	 */
+	public long getTimeUntilNextTimer();
+}
@@ -0,0 +1,164 @@
+package togos.icmpresponder;
+
+import togos.icmpresponder.log.PacketLog;
+
+/**
+ * Hashed timing wheel: a ring of slots, each covering one tick of time,
+ * with every scheduled timer linked into the slot its deadline falls in.
+ * Timers more than one lap of the wheel away just sit in their slot
+ * until the wheel comes round to the right lap.
+ * 
+ * Timers are intrusive (the links live in the Timer objects), so
+ * scheduling, rescheduling, and cancelling are all O(1) and allocate
+ * nothing, however many timers there are.  Expiry costs O(1) per tick
+ * plus O(1) per timer in the slots passed over.
+ * 
+ * Time only moves when advanceTime is called, and timers fire from
+ * within that call, so a wheel belongs to whichever thread drives it
+ * (not thread-safe).  Timers fire no earlier than their deadline, and
+ * up to a tick (plus however long between advanceTime calls) later.
+ */
+public class TimerWheel
+{
+	public static abstract class Timer {
+		TimerWheel wheel;
+		Timer prev, next;
+		/** Index into wheel's lists; slot count for the being-fired list */
+		int list;
+		long deadline, deadlineTick;
+		
+		public boolean isScheduled() { return wheel != null; }
+		/** When this timer is due, if it's scheduled */
+		public long getDeadline() { return deadline; }
+		
+		/** Called (at most once per scheduling) when the timer goes off */
+		protected abstract void fire( long now ) throws Exception;
+	}
+	
+	protected final long tickMillis;
+	protected final int mask;
+	/** Heads of the per-slot lists, plus one more for timers about to fire */
+	protected final Timer[] lists;
+	protected final int firingList;
+	protected long currentTime;
+	protected long currentTick;
+	protected int size;
+	
+	/**
+	 * @param startTime the time (in milliseconds, on whatever clock
+	 *   advanceTime will be given) that the wheel starts at
+	 * @param slotCount rounded up to a power of two
+	 */
+	public TimerWheel( long startTime, long tickMillis, int slotCount ) {
+		int n = 1;
+		while( n < slotCount ) n <<= 1;
+		this.tickMillis = tickMillis;
+		this.mask = n - 1;
+		this.lists = new Timer[n+1];
+		this.firingList = n;
+		this.currentTime = startTime;
+		this.currentTick = startTime / tickMillis;
+	}
+	
+	public long getCurrentTime() { return currentTime; }
+	public long getTickMillis() { return tickMillis; }
+	/** Number of scheduled timers */
+	public int size() { return size; }
+	
+	protected void link( Timer t, int list ) {
+		t.list = list;
+		t.prev = null;
+		t.next = lists[list];
+		if( t.next != null ) t.next.prev = t;
+		lists[list] = t;
+	}
+	
+	protected void unlink( Timer t ) {
+		if( t.prev == null ) lists[t.list] = t.next;
+		else t.prev.next = t.next;
+		if( t.next != null ) t.next.prev = t.prev;
+		t.prev = t.next = null;
+	}
+	
+	/**
+	 * Schedule t to go off at the given time (or at the next tick,
+	 * if that's already passed), replacing any existing schedule.
+	 */
+	public void scheduleAt( Timer t, long deadline ) {
+		if( t.wheel == this ) {
+			unlink( t );
+		} else {
+			if( t.wheel != null ) t.wheel.cancel( t );
+			t.wheel = this;
+			++size;
+		}
+		t.deadline = deadline;
+		// Round up, so as not to fire early
+		t.deadlineTick = Math.max( (deadline + tickMillis - 1) / tickMillis, currentTick + 1 );
+		link( t, (int)(t.deadlineTick & mask) );
+	}
+	
+	/** Schedule t to go off delayMillis after the current time */
+	public void schedule( Timer t, long delayMillis ) {
+		scheduleAt( t, currentTime + delayMillis );
+	}
+	
+	/** @return true if t was scheduled (and now isn't) */
+	public boolean cancel( Timer t ) {
+		if( t.wheel != this ) return false;
+		unlink( t );
+		t.wheel = null;
+		--size;
+		return true;
+	}
+	
+	/**
+	 * Move the wheel's time forward to now, firing every timer
+	 * that's come due.  Exceptions thrown by timers are logged.
+	 */
+	public void advanceTime( long now ) {
+		if( now <= currentTime ) return;
+		long fromTick = currentTick;
+		long nowTick = now / tickMillis;
+		currentTime = now;
+		currentTick = nowTick;
+		
+		// Move everything that's due onto the firing list first, so that
+		// timers that cancel or reschedule other timers as they fire
+		// don't trip up the slot scanning.
+		long steps = Math.min( nowTick - fromTick, mask + 1 );
+		for( long s=1; s<=steps; ++s ) {
+			Timer t = lists[(int)((fromTick + s) & mask)];
+			while( t != null ) {
+				Timer next = t.next;
+				if( t.deadlineTick <= nowTick ) {
+					unlink( t );
+					link( t, firingList );
+				}
+				t = next;
+			}
+		}
+		
+		Timer t;
+		while( (t = lists[firingList]) != null ) {
+			unlink( t );
+			t.wheel = null;
+			--size;
+			try {
+				t.fire( now );
+			} catch( Exception e ) {
+				PacketLog.getDefault().log( PacketLog.ERROR, "Error in timer: "+e );
+			}
+		}
+	}
+	
+	/**
+	 * How long until advanceTime next needs calling, or -1 if no timers are scheduled.
+	 * (It's not worth searching for the earliest deadline, so this is just a tick
+	 * whenever there's anything scheduled at all.)
+	 */
+	public long getTimeUntilNextTick() {
+		if( size == 0 ) return -1;
+		return Math.max( 1, (currentTick + 1) * tickMillis - currentTime );
+	}
+}
@@ -0,0 +1,57 @@
+package togos.icmpresponder.log;
+
+import java.io.PrintStream;
+
+import togos.blob.ByteChunk;
+import togos.icmpresponder.AddressUtil;
+import togos.icmpresponder.packet.ICMP6Message;
+import togos.icmpresponder.packet.PacketContext;
+import togos.icmpresponder.packet.TCPSegment;
+
+/**
+ * Writes human-readable descriptions of packets.
+ * PacketLog calls it from its writer thread, decoding each
+ * logged packet once with that thread's own PacketContext.
+ */
+public class PacketDumper
+{
+	public static void dumpPayload( PacketContext ctx, PrintStream out ) {
+		if( ctx.hasExtensionHeaders() ) {
+			out.println("  Upper-layer protocol after extension headers: "+ctx.getUpperProtocol() );
+		}
+		switch( ctx.getUpperProtocol() ) {
+		case( ICMP6Message.ICMP6_PROTOCOL_NUMBER ):
+			out.println("  ICMP6 message");
+			if( !ctx.icmp.isWellFormed() ) {
+				out.println("    "+ctx.icmp.getErrorNote() );
+				break;
+			}
+			out.println("    Type: "+ctx.icmp.getType() );
+			out.println("    Code: "+ctx.icmp.getCode() );
+			out.println("    Payload size: "+ctx.icmp.getBodySize() );
+			out.println("    Checksum: "+ctx.icmp.getChecksum()+(ctx.isChecksumValid() ? " (valid)" : " (invalid)") );
+			break;
+		case( TCPSegment.TCP_PROTOCOL_NUMBER ):
+			out.println( "  "+ctx.tcp.toString() );
+			if( ctx.tcp.isWellFormed() ) {
+				out.println("    Checksum is "+(ctx.isChecksumValid() ? "valid" : "invalid") );
+			}
+			break;
+		}
+	}
+	
+	public static void dumpPacket( byte[] buf, int off, int size, PacketContext ctx, PrintStream out ) {
+		if( !ctx.decode( buf, off, size ) && !ctx.ip.isValid() ) {
+			out.println("Some non-IP6 packet: "+ctx.getErrorNote());
+			return;
+		}
+		out.println("IP6 Packet");
+		out.println("  From: "+AddressUtil.formatIp6Address(buf, ctx.ip.getSourceAddressOffset()));
+		out.println("  To:   "+AddressUtil.formatIp6Address(buf, ctx.ip.getDestinationAddressOffset()));
+		dumpPayload( ctx, out );
+	}
+	
+	public static void dumpPacket( ByteChunk c, PrintStream out ) {
+		dumpPacket( c.getBuffer(), c.getOffset(), c.getSize(), new PacketContext(), out );
+	}
+}
@@ -0,0 +1,161 @@
+package togos.icmpresponder.log;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import togos.blob.SimpleByteChunk;
+import togos.icmpresponder.packet.PacketContext;
+
+/**
+ * Leveled, sampled logging of messages and packets.
+ *
+ * Callers are expected to check isEnabled/shouldLogPacket before
+ * building any message or touching the packet, so when logging is
+ * turned down, the cost is a field read and a compare.
+ *
+ * Anything that does get logged is put on a bounded queue and
+ * formatted and written by a separate thread, so the packet-handling
+ * threads never block on the output stream.  When the queue is full,
+ * entries are dropped (and counted) rather than waited on.
+ */
+public class PacketLog
+{
+	public static final int OFF   = 0;
+	public static final int ERROR = 1;
+	public static final int WARN  = 2;
+	public static final int INFO  = 3;
+	public static final int DEBUG = 4;
+	
+	static final String[] LEVEL_NAMES = { "off", "error", "warn", "info", "debug" };
+	
+	public static int parseLevel( String name ) {
+		for( int i=0; i<LEVEL_NAMES.length; ++i ) {
+			if( LEVEL_NAMES[i].equalsIgnoreCase(name) ) return i;
+		}
+		throw new IllegalArgumentException("Unrecognized log level: '"+name+"'");
+	}
+	
+	static class Entry {
+		final String message;
+		/** Copy of the packet, or null if this is just a message */
+		final byte[] packet;
+		
+		Entry( String message, byte[] packet ) {
+			this.message = message;
+			this.packet = packet;
+		}
+	}
+	
+	protected volatile int level = INFO;
+	/**
+	 * Log one of every sampleIntervals[protocol] packets of each protocol.
+	 * 0 means don't log packets of that protocol at all.
+	 */
+	protected final int[] sampleIntervals = new int[256];
+	/**
+	 * Packets seen per protocol, for sampling.
+	 * Updates from different threads may race, which only
+	 * makes the sampling slightly less regular.
+	 */
+	protected final int[] sampleCounters = new int[256];
+	protected final BlockingQueue<Entry> queue;
+	protected final PrintStream out;
+	protected final AtomicLong droppedCount = new AtomicLong();
+	/** Only used by the writer thread */
+	protected final PacketContext writerContext = new PacketContext();
+	protected Thread writerThread;
+	
+	public PacketLog( PrintStream out, int queueSize ) {
+		this.out = out;
+		this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+		for( int i=0; i<256; ++i ) sampleIntervals[i] = 1;
+	}
+	
+	static PacketLog defaultInstance;
+	public static synchronized PacketLog getDefault() {
+		if( defaultInstance == null ) defaultInstance = new PacketLog( System.err, 4096 );
+		return defaultInstance;
+	}
+	
+	public void setLevel( int level ) { this.level = level; }
+	public int getLevel() { return level; }
+	
+	/** Log only one out of every interval packets with the given payload protocol number */
+	public void setSampleInterval( int protocol, int interval ) {
+		sampleIntervals[protocol & 0xFF] = interval;
+	}
+	
+	public long getDroppedCount() { return droppedCount.get(); }
+	
+	public boolean isEnabled( int level ) {
+		return level <= this.level;
+	}
+	
+	/**
+	 * Should a packet of the given protocol be logged at the given level?
+	 * Each call counts towards sampling, so only call this once per packet.
+	 */
+	public boolean shouldLogPacket( int level, int protocol ) {
+		if( level > this.level ) return false;
+		int interval = sampleIntervals[protocol & 0xFF];
+		if( interval <= 1 ) return interval == 1;
+		return ++sampleCounters[protocol & 0xFF] % interval == 0;
+	}
+	
+	protected synchronized void ensureWriterStarted() {
+		if( writerThread != null ) return;
+		writerThread = new Thread("packet-log-writer") {
+			@Override public void run() {
+				while( true ) {
+					Entry e;
+					try {
+						e = queue.take();
+					} catch( InterruptedException ie ) {
+						return;
+					}
+					write( e );
+				}
+			}
+		};
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	protected void enqueue( Entry e ) {
+		if( writerThread == null ) ensureWriterStarted();
+		if( !queue.offer(e) ) droppedCount.incrementAndGet();
+	}
+	
+	protected void write( Entry e ) {
+		if( e.packet == null ) {
+			out.println( e.message );
+		} else {
+			out.print( e.message );
+			out.print( " " );
+			PacketDumper.dumpPacket( e.packet, 0, e.packet.length, writerContext, out );
+		}
+	}
+	
+	/** Log a message if the level is enabled */
+	public void log( int level, String message ) {
+		if( level > this.level ) return;
+		enqueue( new Entry(message, null) );
+	}
+	
+	/**
+	 * Log a packet.  The packet is copied immediately (its buffer
+	 * may be reused as soon as this returns) but only parsed and
+	 * formatted later by the writer thread.
+	 * Callers should check shouldLogPacket first.
+	 */
+	public void logPacket( String message, byte[] buf, int off, int size ) {
+		enqueue( new Entry(message, SimpleByteChunk.copyOf(buf, off, size).buffer) );
+	}
+	
+	/** Log the packet that ctx has decoded */
+	public void logPacket( String message, PacketContext ctx ) {
+		logPacket( message, ctx.ip.getBuffer(), ctx.ip.getOffset(), ctx.ip.getSize() );
+	}
+}
@@ -0,0 +1,51 @@
+package togos.icmpresponder.packet;
+
+import togos.icmpresponder.ByteUtil;
+
+/**
+ * Reusable view of an ICMPv6 message carried by the packet an
+ * IP6Decoder is pointed at; the flyweight counterpart of ICMP6Message.
+ */
+public class ICMP6Decoder
+{
+	protected IP6Decoder ip;
+	protected byte[] buffer;
+	protected int offset;
+	protected int size;
+	
+	/** @return true if there's at least a whole ICMPv6 header */
+	public boolean wrap( IP6Decoder ip ) {
+		return wrap( ip, ip.getPayloadOffset(), ip.getPayloadSize() );
+	}
+	
+	/**
+	 * Like wrap(ip), but for when the message doesn't immediately
+	 * follow the IPv6 header, e.g. because there are extension headers.
+	 * offset is relative to the buffer.
+	 */
+	public boolean wrap( IP6Decoder ip, int offset, int size ) {
+		this.ip = ip;
+		this.buffer = ip.getBuffer();
+		this.offset = offset;
+		this.size = size;
+		return isWellFormed();
+	}
+	
+	public boolean isWellFormed() { return size >= ICMP6Message.ICMP6_HEADER_SIZE; }
+	
+	public String getErrorNote() {
+		return isWellFormed() ? null : "ICMP6 message size must be >= 4, but is only "+size;
+	}
+	
+	public IP6Decoder getIpDecoder() { return ip; }
+	public byte[] getBuffer() { return buffer; }
+	public int getOffset() { return offset; }
+	public int getSize() { return size; }
+	
+	public int getType() { return buffer[offset] & 0xFF; }
+	public int getCode() { return buffer[offset+1] & 0xFF; }
+	public int getChecksum() { return ByteUtil.decodeUInt16( buffer, offset+2 ); }
+	/** Offset within the buffer of the message body, after the type, code, and checksum */
+	public int getBodyOffset() { return offset + ICMP6Message.ICMP6_HEADER_SIZE; }
+	public int getBodySize() { return size - ICMP6Message.ICMP6_HEADER_SIZE; }
+}
@@ -9,6 +9,8 @@ public class ICMP6Message extends SimpleByteChunk
 {
 	public static final int ICMP6_HEADER_SIZE = 4;
 	public static final int ICMP6_PROTOCOL_NUMBER = 58;
+	public static final int ECHO_REQUEST = 128;
+	public static final int ECHO_REPLY = 129;
 	
 	public IPPacket ipPacket;
 	public final int icmpMessageType;
@@ -40,14 +42,18 @@ public class ICMP6Message extends SimpleByteChunk
 		}
 	}
 	
+	/**
+	 * Checksum of the pseudo-header and payload of p, summed in place.
+	 * For a packet whose checksum field is already filled in correctly,
+	 * this will be zero.
+	 */
 	public static long calculateIcmp6Checksum( IP6Packet p ) {
-		byte[] data = new byte[40+p.payloadSize];
-		ByteUtil.copy( p.getSourceAddress()     , data,  0 );
-		ByteUtil.copy( p.getDestinationAddress(), data, 16 );
-		ByteUtil.encodeInt32( p.payloadSize, data, 32 );
-		ByteUtil.encodeInt32( p.getPayloadProtocolNumber(), data, 36 );
-		ByteUtil.copy( p.getBuffer(), p.getPayloadOffset(), data, 40, p.payloadSize );
-		return InternetChecksum.checksum( data );
+		byte[] buf = p.getBuffer();
+		long sum = InternetChecksum.ip6PseudoHeaderSum(
+			buf, p.getOffset() + IP6Packet.SOURCE_ADDRESS_OFFSET,
+			buf, p.getOffset() + IP6Packet.DESTINATION_ADDRESS_OFFSET,
+			p.payloadSize, p.getPayloadProtocolNumber() );
+		return InternetChecksum.finish( InternetChecksum.sum( buf, p.getPayloadOffset(), p.payloadSize, sum ) );
 	}
 	
 	public static ICMP6Message create(
@@ -68,7 +74,61 @@ public class ICMP6Message extends SimpleByteChunk
 		}
 		int checksum = (int)calculateIcmp6Checksum(p);
 		ByteUtil.encodeInt16( checksum, p.buffer, IP6Packet.IP6_HEADER_SIZE + 2);
-		return new ICMP6Message( p.buffer, IP6Packet.IP6_ADDRESS_SIZE, payloadSize + 4, p, type, code, checksum);
+		return new ICMP6Message( p.buffer, IP6Packet.IP6_HEADER_SIZE, payloadSize + 4, p, type, code, checksum);
+	}
+	
+	/**
+	 * Create a reply to the echo request whose addresses and ICMPv6 message
+	 * are at the given offsets in buf.  Any extension headers the request
+	 * had in between are left out of the reply.
+	 * 
+	 * The reply only differs from the request in its type and in the
+	 * source and destination being swapped, which doesn't change the
+	 * pseudo-header sum, so rather than checksumming the whole payload
+	 * again, the request's checksum is adjusted for the new type.
+	 * (This means a request with a bad checksum gets a reply with a bad
+	 * checksum, which is fair enough.)
+	 */
+	public static ICMP6Message createEchoReply(
+		byte[] buf, int sourceAddressOffset, int destAddressOffset,
+		int icmpOffset, int icmpSize, int hopLimit
+	) {
+		IP6Packet p = IP6Packet.create(
+			buf, destAddressOffset,
+			buf, sourceAddressOffset,
+			ICMP6_PROTOCOL_NUMBER, hopLimit, icmpSize
+		);
+		System.arraycopy( buf, icmpOffset, p.buffer, IP6Packet.IP6_HEADER_SIZE, icmpSize );
+		int code = buf[icmpOffset+1] & 0xFF;
+		p.buffer[IP6Packet.IP6_HEADER_SIZE] = (byte)ECHO_REPLY;
+		int checksum = InternetChecksum.update16( ByteUtil.decodeUInt16( buf, icmpOffset+2 ),
+			(ECHO_REQUEST << 8) | code,
+			(ECHO_REPLY   << 8) | code );
+		ByteUtil.encodeInt16( checksum, p.buffer, IP6Packet.IP6_HEADER_SIZE + 2 );
+		return new ICMP6Message( p.buffer, IP6Packet.IP6_HEADER_SIZE, icmpSize, p, ECHO_REPLY, code, checksum );
+	}
+	
+	/**
+	 * Rewrite an echo request (with no extension headers between
+	 * the IPv6 header and the ICMPv6 message) into the corresponding reply, in place: addresses are swapped,
+	 * hop limit and type set, and the checksum patched as in createEchoReply.
+	 * Returns the size of the reply, which may be less than the
+	 * size of the datagram the request arrived in if that had junk on the end.
+	 */
+	public static int turnIntoEchoReply( byte[] buf, int off, int hopLimit ) {
+		int src = off + IP6Packet.SOURCE_ADDRESS_OFFSET;
+		int dest = off + IP6Packet.DESTINATION_ADDRESS_OFFSET;
+		for( int i=0; i<16; ++i ) {
+			byte b = buf[src+i];
+			buf[src+i] = buf[dest+i];
+			buf[dest+i] = b;
+		}
+		buf[off+7] = (byte)hopLimit;
+		int icmpOffset = off + IP6Packet.IP6_HEADER_SIZE;
+		int code = buf[icmpOffset+1] & 0xFF;
+		buf[icmpOffset] = (byte)ECHO_REPLY;
+		InternetChecksum.patch16( buf, icmpOffset+2, (ECHO_REQUEST << 8) | code, (ECHO_REPLY << 8) | code );
+		return IP6Packet.IP6_HEADER_SIZE + ByteUtil.decodeUInt16( buf, off+4 );
 	}
 	
 	public static ICMP6Message create(
@@ -0,0 +1,75 @@
+package togos.icmpresponder.packet;
+
+import togos.icmpresponder.ByteUtil;
+
+/**
+ * Reusable view of an IPv6 packet in a buffer.
+ * 
+ * Unlike IPPacket.parse, which creates new objects for every packet,
+ * one of these can be pointed at packet after packet with wrap().
+ * Fields are read from the buffer when asked for, and the error note
+ * for a bad packet is only put together if someone calls getErrorNote().
+ * 
+ * Not thread-safe; each thread handling packets should have its own.
+ */
+public class IP6Decoder
+{
+	public static final int OK = 0;
+	public static final int TOO_SHORT = 1;
+	public static final int NOT_IP6 = 2;
+	public static final int BAD_PAYLOAD_LENGTH = 3;
+	
+	protected byte[] buffer;
+	protected int offset;
+	protected int size;
+	protected int error;
+	
+	/**
+	 * Point this decoder at the packet at buf[off...off+size].
+	 * @return true if it looks like a valid IPv6 packet
+	 */
+	public boolean wrap( byte[] buf, int off, int size ) {
+		this.buffer = buf;
+		this.offset = off;
+		this.size = size;
+		if( size < IP6Packet.IP6_HEADER_SIZE ) {
+			error = TOO_SHORT;
+		} else if( ((buf[off] >> 4) & 0xF) != 6 ) {
+			error = NOT_IP6;
+		} else if( IP6Packet.IP6_HEADER_SIZE + ByteUtil.decodeUInt16(buf, off+4) > size ) {
+			error = BAD_PAYLOAD_LENGTH;
+		} else {
+			error = OK;
+		}
+		return error == OK;
+	}
+	
+	public boolean isValid() { return error == OK; }
+	public int getError() { return error; }
+	
+	public String getErrorNote() {
+		switch( error ) {
+		case( OK ): return null;
+		case( TOO_SHORT ): return "Supposed IP6 packet not large enough for IP6 header ("+size+" bytes)";
+		case( NOT_IP6 ): return "IP version is "+((buffer[offset] >> 4) & 0xF)+", not 6";
+		case( BAD_PAYLOAD_LENGTH ): return "IP6 payload length ("+getPayloadSize()+") too large for packet ("+size+" bytes)";
+		default: return "Invalid IP6 packet";
+		}
+	}
+	
+	public byte[] getBuffer() { return buffer; }
+	public int getOffset() { return offset; }
+	/** Size of the buffer range given to wrap */
+	public int getSize() { return size; }
+	/** Size of the packet according to its header, which may be less than getSize() */
+	public int getPacketSize() { return IP6Packet.IP6_HEADER_SIZE + getPayloadSize(); }
+	
+	public int getPayloadProtocolNumber() { return buffer[offset+6] & 0xFF; }
+	public int getHopLimit() { return buffer[offset+7] & 0xFF; }
+	public int getPayloadOffset() { return offset + IP6Packet.IP6_HEADER_SIZE; }
+	public int getPayloadSize() { return ByteUtil.decodeUInt16( buffer, offset+4 ); }
+	/** Offset of the source address within the buffer */
+	public int getSourceAddressOffset() { return offset + IP6Packet.SOURCE_ADDRESS_OFFSET; }
+	/** Offset of the destination address within the buffer */
+	public int getDestinationAddressOffset() { return offset + IP6Packet.DESTINATION_ADDRESS_OFFSET; }
+}
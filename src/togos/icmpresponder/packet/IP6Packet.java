@@ -8,6 +8,9 @@ public class IP6Packet extends IPPacket
 {
 	public static final int IP6_HEADER_SIZE = 40;
 	public static final int IP6_ADDRESS_SIZE = 16;
+	/** Offsets of the addresses relative to the start of the packet */
+	public static final int SOURCE_ADDRESS_OFFSET = 8;
+	public static final int DESTINATION_ADDRESS_OFFSET = 24;
 	
 	protected int payloadSize;
 	
@@ -19,14 +22,14 @@ public class IP6Packet extends IPPacket
 	@Override public int getIpVersion() { return 6; }
 	
 	@Override public ByteChunk getSourceAddress() {
-		return new SimpleByteChunk( buffer, offset+8, IP6_ADDRESS_SIZE );
+		return new SimpleByteChunk( buffer, offset+SOURCE_ADDRESS_OFFSET, IP6_ADDRESS_SIZE );
 	}
 	@Override public ByteChunk getDestinationAddress() {
-		return new SimpleByteChunk( buffer, offset+24, IP6_ADDRESS_SIZE );
+		return new SimpleByteChunk( buffer, offset+DESTINATION_ADDRESS_OFFSET, IP6_ADDRESS_SIZE );
 	}
 	@Override public int getPayloadProtocolNumber() { return buffer[offset+6] & 0xFF; }
 	@Override public int getHopLimit() { return buffer[offset+7] & 0xFF; }
-	@Override public int getPayloadOffset() { return 40; }
+	@Override public int getPayloadOffset() { return offset+IP6_HEADER_SIZE; }
 	@Override public int getPayloadSize() { return payloadSize; }
 	
 	public static IPPacket parse( byte[] buffer, int offset, int size ) {
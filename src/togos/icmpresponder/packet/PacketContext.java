@@ -0,0 +1,164 @@
+package togos.icmpresponder.packet;
+
+import togos.icmpresponder.ByteUtil;
+import togos.icmpresponder.InternetChecksum;
+
+/**
+ * Everything decoded about one incoming packet: the IPv6 header, any
+ * extension headers, and the upper-layer (TCP or ICMPv6) header.
+ * 
+ * decode() does all of that once, and the result is handed to whatever
+ * needs it (logging, dispatch, and the protocol handlers) so none of
+ * them has to parse the packet again.  Things that aren't always needed,
+ * like whether the upper-layer checksum is right, are worked out the
+ * first time they're asked for and then remembered.
+ * 
+ * Reusable; like the decoders it holds, each thread needs its own.
+ */
+public class PacketContext
+{
+	public static final int HOP_BY_HOP_OPTIONS = 0;
+	public static final int ROUTING = 43;
+	public static final int FRAGMENT = 44;
+	public static final int DESTINATION_OPTIONS = 60;
+	public static final int NO_NEXT_HEADER = 59;
+	
+	/** Errors in the extension headers; the rest are the decoders' */
+	public static final int OK = 0;
+	public static final int EXTENSION_HEADER_TOO_LONG = 1;
+	
+	protected static final int CHECKSUM_UNKNOWN = 0;
+	protected static final int CHECKSUM_VALID = 1;
+	protected static final int CHECKSUM_INVALID = 2;
+	
+	public final IP6Decoder ip = new IP6Decoder();
+	public final TCPDecoder tcp = new TCPDecoder();
+	public final ICMP6Decoder icmp = new ICMP6Decoder();
+	
+	protected boolean valid;
+	protected int error;
+	/** Type of the extension header that error is about */
+	protected int errorHeader;
+	/** Protocol number, offset, and size of whatever follows the extension headers */
+	protected int upperProtocol;
+	protected int upperOffset;
+	protected int upperSize;
+	/** True if the packet is a fragment (other than a whole packet in a fragment header) */
+	protected boolean fragment;
+	protected int checksumState;
+	
+	/**
+	 * Decode the packet at buf[off...off+size].
+	 * @return true if it's a valid IPv6 packet and its upper-layer header
+	 *   (if it's one we know about) is well-formed
+	 */
+	public boolean decode( byte[] buf, int off, int size ) {
+		error = OK;
+		fragment = false;
+		checksumState = CHECKSUM_UNKNOWN;
+		upperProtocol = NO_NEXT_HEADER;
+		upperOffset = off;
+		upperSize = 0;
+		
+		if( !ip.wrap( buf, off, size ) ) return valid = false;
+		
+		int nextHeader = ip.getPayloadProtocolNumber();
+		int pos = ip.getPayloadOffset();
+		int end = pos + ip.getPayloadSize();
+		walk: while( true ) {
+			switch( nextHeader ) {
+			case( HOP_BY_HOP_OPTIONS ): case( ROUTING ): case( DESTINATION_OPTIONS ): case( FRAGMENT ):
+				if( pos + 8 > end ) return extensionHeaderError( EXTENSION_HEADER_TOO_LONG, nextHeader );
+				int headerSize;
+				if( nextHeader == FRAGMENT ) {
+					headerSize = 8;
+					// Fragment offset and 'more fragments' flag both zero
+					// means this is the whole thing; otherwise leave it be.
+					if( (ByteUtil.decodeUInt16(buf, pos+2) & 0xFFF9) != 0 ) fragment = true;
+				} else {
+					headerSize = ((buf[pos+1] & 0xFF) + 1) << 3;
+				}
+				if( pos + headerSize > end ) return extensionHeaderError( EXTENSION_HEADER_TOO_LONG, nextHeader );
+				nextHeader = buf[pos] & 0xFF;
+				pos += headerSize;
+				if( fragment ) break walk;
+				break;
+			default:
+				break walk;
+			}
+		}
+		upperProtocol = fragment ? FRAGMENT : nextHeader;
+		upperOffset = pos;
+		upperSize = end - pos;
+		
+		switch( upperProtocol ) {
+		case( TCPSegment.TCP_PROTOCOL_NUMBER ):
+			return valid = tcp.wrap( ip, upperOffset, upperSize );
+		case( ICMP6Message.ICMP6_PROTOCOL_NUMBER ):
+			return valid = icmp.wrap( ip, upperOffset, upperSize );
+		default:
+			return valid = true;
+		}
+	}
+	
+	/** Note what's wrong, without building a message that no one may look at */
+	protected boolean extensionHeaderError( int error, int header ) {
+		this.error = error;
+		this.errorHeader = header;
+		return valid = false;
+	}
+	
+	public boolean isValid() { return valid; }
+	
+	/** Why the packet isn't valid, or null if it is */
+	public String getErrorNote() {
+		if( valid ) return null;
+		if( !ip.isValid() ) return ip.getErrorNote();
+		switch( error ) {
+		case( OK ): break;
+		case( EXTENSION_HEADER_TOO_LONG ): return "Extension header "+errorHeader+" runs past end of packet";
+		default: return "Invalid extension header "+errorHeader;
+		}
+		switch( upperProtocol ) {
+		case( TCPSegment.TCP_PROTOCOL_NUMBER ): return tcp.getErrorNote();
+		case( ICMP6Message.ICMP6_PROTOCOL_NUMBER ): return icmp.getErrorNote();
+		default: return "Invalid packet";
+		}
+	}
+	
+	/**
+	 * Protocol of the header following any extension headers,
+	 * or FRAGMENT if the packet is just a piece of one.
+	 */
+	public int getUpperProtocol() { return upperProtocol; }
+	public int getUpperOffset() { return upperOffset; }
+	public int getUpperSize() { return upperSize; }
+	public boolean hasExtensionHeaders() { return upperOffset != ip.getPayloadOffset(); }
+	
+	/**
+	 * Is the TCP or ICMPv6 checksum correct?
+	 * Calculated the first time it's asked for.
+	 * Always false for other protocols, which we don't know how to check.
+	 */
+	public boolean isChecksumValid() {
+		if( checksumState == CHECKSUM_UNKNOWN ) {
+			boolean ok;
+			switch( upperProtocol ) {
+			case( TCPSegment.TCP_PROTOCOL_NUMBER ): case( ICMP6Message.ICMP6_PROTOCOL_NUMBER ):
+				byte[] buf = ip.getBuffer();
+				long sum = InternetChecksum.ip6PseudoHeaderSum(
+					buf, ip.getSourceAddressOffset(), buf, ip.getDestinationAddressOffset(),
+					upperSize, upperProtocol );
+				ok = InternetChecksum.finish( InternetChecksum.sum(buf, upperOffset, upperSize, sum) ) == 0;
+				break;
+			default:
+				ok = false;
+			}
+			checksumState = ok ? CHECKSUM_VALID : CHECKSUM_INVALID;
+		}
+		return checksumState == CHECKSUM_VALID;
+	}
+	
+	/** Has isChecksumValid been called (so that calling it again is free)? */
+	public boolean isChecksumKnown() { return checksumState != CHECKSUM_UNKNOWN; }
+}
@@ -0,0 +1,121 @@
+package togos.icmpresponder.packet;
+
+import togos.icmpresponder.ByteUtil;
+import togos.icmpresponder.SocketAddressPair;
+import togos.icmpresponder.tcp.TCPFlags;
+
+/**
+ * Reusable view of a TCP segment carried by the packet an IP6Decoder
+ * is pointed at; the flyweight counterpart of TCPSegment.
+ * 
+ * As a SocketAddressPair it refers directly to the addresses in the
+ * packet buffer, so it's only good until the decoder is re-wrapped.
+ * Copy it (SimpleSocketAddressPair.copyOf) to keep it.
+ */
+public class TCPDecoder implements SocketAddressPair
+{
+	public static final int OK = 0;
+	public static final int TOO_SHORT = 1;
+	public static final int BAD_DATA_OFFSET = 2;
+	
+	protected IP6Decoder ip;
+	protected byte[] buffer;
+	protected int offset;
+	protected int size;
+	protected int error;
+	
+	/**
+	 * Point this decoder at the TCP segment in ip's payload.
+	 * @return true if the segment is well-formed
+	 */
+	public boolean wrap( IP6Decoder ip ) {
+		return wrap( ip, ip.getPayloadOffset(), ip.getPayloadSize() );
+	}
+	
+	/**
+	 * Like wrap(ip), but for when the message doesn't immediately
+	 * follow the IPv6 header, e.g. because there are extension headers.
+	 * offset is relative to the buffer.
+	 */
+	public boolean wrap( IP6Decoder ip, int offset, int size ) {
+		this.ip = ip;
+		this.buffer = ip.getBuffer();
+		this.offset = offset;
+		this.size = size;
+		if( size < TCPSegment.TCP_HEADER_SIZE ) {
+			error = TOO_SHORT;
+		} else {
+			int headerSize = getHeaderSize();
+			error = headerSize >= TCPSegment.TCP_HEADER_SIZE && headerSize <= size ? OK : BAD_DATA_OFFSET;
+		}
+		return error == OK;
+	}
+	
+	public boolean isWellFormed() { return error == OK; }
+	public int getError() { return error; }
+	
+	public String getErrorNote() {
+		switch( error ) {
+		case( OK ): return null;
+		case( TOO_SHORT ): return "TCP message size must be >= 20, but is only "+size;
+		case( BAD_DATA_OFFSET ): return "Data offset ("+getHeaderSize()+" bytes) is out of range";
+		default: return "Malformed TCP segment";
+		}
+	}
+	
+	public IP6Decoder getIpDecoder() { return ip; }
+	public byte[] getBuffer() { return buffer; }
+	public int getOffset() { return offset; }
+	public int getSize() { return size; }
+	
+	public int getSourcePort() { return ByteUtil.decodeUInt16( buffer, offset+0 ); }
+	public int getDestinationPort() { return ByteUtil.decodeUInt16( buffer, offset+2 ); }
+	public int getSequenceNumber() { return ByteUtil.decodeInt32( buffer, offset+4 ); }
+	public int getAckNumber() { return ByteUtil.decodeInt32( buffer, offset+8 ); }
+	public int getFlags() { return ByteUtil.decodeUInt16( buffer, offset+12 ) & 0xFFF; }
+	public int getWindowSize() { return ByteUtil.decodeUInt16( buffer, offset+14 ); }
+	public int getChecksum() { return ByteUtil.decodeUInt16( buffer, offset+16 ); }
+	/** Size of the header, options included, in bytes */
+	public int getHeaderSize() { return ((buffer[offset+12] >> 4) & 0xF) << 2; }
+	
+	/* Offsets are relative to the buffer, like TCPSegment's */
+	
+	public int getOptionsOffset() { return offset + TCPSegment.TCP_HEADER_SIZE; }
+	public int getOptionsSize() { return getHeaderSize() - TCPSegment.TCP_HEADER_SIZE; }
+	public int getDataOffset() { return offset + getHeaderSize(); }
+	public int getDataSize() { return size - getHeaderSize(); }
+	
+	public boolean hasFlag( int flag ) {
+		return (getFlags() & flag) == flag;
+	}
+	
+	public boolean isSyn() { return hasFlag(TCPFlags.SYN); }
+	public boolean isAck() { return hasFlag(TCPFlags.ACK); }
+	public boolean isFin() { return hasFlag(TCPFlags.FIN); }
+	public boolean isRst() { return hasFlag(TCPFlags.RST); }
+	public boolean hasData() { return getDataSize() > 0; }
+	
+	public int getSequenceDelta() {
+		return getDataSize() + (isSyn() ? 1 : 0) + (isFin() ? 1 : 0);
+	}
+	
+	//// SocketAddressPair
+	
+	public int getIpVersion() { return 6; }
+	public byte[] getSourceAddressBuffer() { return buffer; }
+	public int getSourceAddressOffset() { return ip.getSourceAddressOffset(); }
+	public byte[] getDestinationAddressBuffer() { return buffer; }
+	public int getDestinationAddressOffset() { return ip.getDestinationAddressOffset(); }
+	
+	public String toString() {
+		if( error != OK ) return "TCP packet (malformed): "+getErrorNote();
+		return "TCP packet (well-formed)"+
+			" sourcePort="+getSourcePort()+
+			" destPort="+getDestinationPort()+
+			" seqNum="+getSequenceNumber()+
+			" ackNum="+getAckNumber()+
+			" flags=0x"+Integer.toHexString(getFlags())+
+			" checksum="+getChecksum()+
+			" payloadSize="+getDataSize();
+	}
+}
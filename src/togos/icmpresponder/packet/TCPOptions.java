@@ -0,0 +1,160 @@
+package togos.icmpresponder.packet;
+
+import togos.icmpresponder.ByteUtil;
+
+/**
+ * The TCP options we know about, as parsed from or to be
+ * encoded into a segment header.  Reusable; parse() clears
+ * anything left over from the last segment.
+ */
+public class TCPOptions
+{
+	public static final int END_OF_OPTIONS = 0;
+	public static final int NO_OPERATION = 1;
+	public static final int MAXIMUM_SEGMENT_SIZE = 2;
+	public static final int WINDOW_SCALE = 3;
+	public static final int SACK_PERMITTED = 4;
+	public static final int SACK = 5;
+	public static final int TIMESTAMPS = 8;
+	
+	/** Most SACK blocks that fit in the 40 bytes of option space */
+	public static final int MAX_SACK_BLOCKS = 4;
+	/** Most that fit alongside timestamps */
+	public static final int MAX_SACK_BLOCKS_WITH_TIMESTAMPS = 3;
+	
+	/** RFC 7323 says shifts over this are to be treated as this */
+	public static final int MAX_WINDOW_SCALE = 14;
+	
+	/** Maximum segment size, or -1 if not given */
+	public int mss;
+	/** Window scale shift count, or -1 if not given */
+	public int windowScale;
+	public boolean sackPermitted;
+	/** Number of SACK blocks; their left and right edges are in sackBlocks */
+	public int sackBlockCount;
+	public final int[] sackBlocks = new int[MAX_SACK_BLOCKS*2];
+	/** True if there's a timestamps option (RFC 7323), in which case its values are in the next two */
+	public boolean hasTimestamps;
+	public int timestampValue, timestampEcho;
+	
+	public TCPOptions() {
+		clear();
+	}
+	
+	public void clear() {
+		mss = -1;
+		windowScale = -1;
+		sackPermitted = false;
+		sackBlockCount = 0;
+		hasTimestamps = false;
+	}
+	
+	/** Most SACK blocks there's room for alongside the other options */
+	public int maxSackBlocks() {
+		return hasTimestamps ? MAX_SACK_BLOCKS_WITH_TIMESTAMPS : MAX_SACK_BLOCKS;
+	}
+	
+	/** Add a SACK block, if there's room for it */
+	public void addSackBlock( int left, int right ) {
+		if( sackBlockCount >= maxSackBlocks() ) return;
+		sackBlocks[sackBlockCount*2  ] = left;
+		sackBlocks[sackBlockCount*2+1] = right;
+		++sackBlockCount;
+	}
+	
+	/**
+	 * Parse the options area of a TCP header.
+	 * Unknown options are skipped.
+	 * @return false if the options are malformed (in which case
+	 *   whatever was parsed before the problem is kept)
+	 */
+	public boolean parse( byte[] buf, int off, int size ) {
+		clear();
+		int end = off + size;
+		while( off < end ) {
+			int kind = buf[off] & 0xFF;
+			if( kind == END_OF_OPTIONS ) return true;
+			if( kind == NO_OPERATION ) {
+				++off;
+				continue;
+			}
+			if( off + 1 >= end ) return false;
+			int len = buf[off+1] & 0xFF;
+			if( len < 2 || off + len > end ) return false;
+			switch( kind ) {
+			case( MAXIMUM_SEGMENT_SIZE ):
+				if( len == 4 ) mss = ByteUtil.decodeUInt16( buf, off+2 );
+				break;
+			case( WINDOW_SCALE ):
+				if( len == 3 ) windowScale = Math.min( buf[off+2] & 0xFF, MAX_WINDOW_SCALE );
+				break;
+			case( SACK_PERMITTED ):
+				if( len == 2 ) sackPermitted = true;
+				break;
+			case( SACK ):
+				if( (len - 2) % 8 == 0 ) {
+					for( int i=off+2; i<off+len; i += 8 ) {
+						addSackBlock( ByteUtil.decodeInt32( buf, i ), ByteUtil.decodeInt32( buf, i+4 ) );
+					}
+				}
+				break;
+			case( TIMESTAMPS ):
+				if( len == 10 ) {
+					hasTimestamps = true;
+					timestampValue = ByteUtil.decodeInt32( buf, off+2 );
+					timestampEcho = ByteUtil.decodeInt32( buf, off+6 );
+				}
+				break;
+			}
+			off += len;
+		}
+		return true;
+	}
+	
+	/**
+	 * Encode whichever options are set, aligned on 4-byte boundaries
+	 * using NOPs.
+	 * @return the number of bytes written, always a multiple of 4
+	 */
+	public int encode( byte[] buf, int off ) {
+		int start = off;
+		if( mss >= 0 ) {
+			buf[off++] = MAXIMUM_SEGMENT_SIZE;
+			buf[off++] = 4;
+			ByteUtil.encodeInt16( mss, buf, off );
+			off += 2;
+		}
+		if( windowScale >= 0 ) {
+			buf[off++] = NO_OPERATION;
+			buf[off++] = WINDOW_SCALE;
+			buf[off++] = 3;
+			buf[off++] = (byte)windowScale;
+		}
+		if( sackPermitted ) {
+			buf[off++] = NO_OPERATION;
+			buf[off++] = NO_OPERATION;
+			buf[off++] = SACK_PERMITTED;
+			buf[off++] = 2;
+		}
+		if( hasTimestamps ) {
+			buf[off++] = NO_OPERATION;
+			buf[off++] = NO_OPERATION;
+			buf[off++] = TIMESTAMPS;
+			buf[off++] = 10;
+			ByteUtil.encodeInt32( timestampValue, buf, off );
+			ByteUtil.encodeInt32( timestampEcho, buf, off+4 );
+			off += 8;
+		}
+		if( sackBlockCount > 0 ) {
+			buf[off++] = NO_OPERATION;
+			buf[off++] = NO_OPERATION;
+			buf[off++] = SACK;
+			buf[off++] = (byte)(2 + sackBlockCount * 8);
+			for( int i=0; i<sackBlockCount*2; ++i ) {
+				ByteUtil.encodeInt32( sackBlocks[i], buf, off );
+				off += 4;
+			}
+		}
+		return off - start;
+	}
+}
@@ -56,85 +56,166 @@ public class TCPSegment extends SimpleByteChunk
 	 * make sure packets are properly formed.
 	 */
 	public static int calculateChecksum( TCPSegment m ) {
-		byte[] checksumBuffer = new byte[60 + m.optionsSize + m.dataSize];
 		// Not yet implemented for IP4 packets
 		IP6Packet ip6p = (IP6Packet)m.ipPacket;
-		ByteUtil.copy( ip6p.getSourceAddress()       , checksumBuffer,  0 );
-		ByteUtil.copy( ip6p.getDestinationAddress()  , checksumBuffer, 16 );
-		ByteUtil.encodeInt32( TCP_HEADER_SIZE + m.optionsSize + m.dataSize, checksumBuffer,     32 ); // 'TCP Length'
-		ByteUtil.encodeInt32( TCP_PROTOCOL_NUMBER, checksumBuffer, 36 ); // 'next header'
+		byte[] ipBuf = ip6p.getBuffer();
+		long sum = InternetChecksum.ip6PseudoHeaderSum(
+			ipBuf, ip6p.getOffset() + IP6Packet.SOURCE_ADDRESS_OFFSET,
+			ipBuf, ip6p.getOffset() + IP6Packet.DESTINATION_ADDRESS_OFFSET,
+			TCP_HEADER_SIZE + m.optionsSize + m.dataSize, TCP_PROTOCOL_NUMBER );
 		
 		// A simpler way (what ICMP6Message.calculateIcmp6Checksum( m.ipPacket ) would do):
-		// ByteUtil.copy( m.getBuffer(), m.getOffset(), checksumBuffer, 40, m.getSize() );
+		// sum the whole segment in one go
 		
-		ByteUtil.copy( m.getBuffer(), m.getOffset(), checksumBuffer, 40, 20 ); // src/dest port, seq/ack num, falgs, windowSize, checksum, and urgent pointer
-		ByteUtil.copy( m.getBuffer(), m.optionsOffset, checksumBuffer, 60, m.optionsSize );
-		ByteUtil.copy( m.getBuffer(), m.dataOffset, checksumBuffer, 60 + m.optionsSize, m.dataSize );
+		sum = InternetChecksum.sum( m.getBuffer(), m.getOffset(), 20, sum ); // src/dest port, seq/ack num, falgs, windowSize, checksum, and urgent pointer
+		sum = InternetChecksum.sum( m.getBuffer(), m.optionsOffset, m.optionsSize, sum );
+		sum = InternetChecksum.sum( m.getBuffer(), m.dataOffset, m.dataSize, sum );
 		
-		return (int)InternetChecksum.checksum(checksumBuffer);
+		return InternetChecksum.finish( sum );
 	}
 	
 	////
 	
-	public static TCPSegment createV6(
+	/**
+	 * Encode an IPv6 packet containing a TCP segment directly into buf,
+	 * starting at off, checksum and all.  Nothing is allocated.
+	 * 
+	 * Options, if any, are copied in as-is and padded with zeroes
+	 * (end-of-options) to a multiple of 4 bytes.
+	 * 
+	 * If dataBuffer is null, the data is assumed to already be in place,
+	 * at off + dataOffsetV6(optionsSize), so that it can be copied there
+	 * from wherever it lives (e.g. from a ring buffer in two pieces)
+	 * without needing to be in one array first.
+	 * 
+	 * @return the total size of the packet written
+	 * @throws IndexOutOfBoundsException if buf doesn't have room for it
+	 */
+	public static int encodeV6(
+		byte[] buf, int off,
 		byte[] sourceAddressBuffer, int sourceAddressOffset, int sourcePort,
 		byte[] destAddressBuffer, int destAddressOffset, int destPort,
 		int seqNum, int ackNum, int flags, int windowSize,
+		byte[] optionsBuffer, int optionsOffset, int optionsSize,
 		byte[] dataBuffer, int dataOffset, int dataSize
 	) {
-		IP6Packet p = IP6Packet.create(
-			sourceAddressBuffer, sourceAddressOffset,
-			destAddressBuffer, destAddressOffset,
-			TCP_PROTOCOL_NUMBER, 255, TCP_HEADER_SIZE + dataSize
-		);
-		byte[] buffer = p.getBuffer();
-		int offset = p.getPayloadOffset();
-		
-		ByteUtil.encodeInt16( sourcePort, buffer, offset+0 );
-		ByteUtil.encodeInt16( destPort, buffer, offset+2 );
-		ByteUtil.encodeInt32( seqNum, buffer, offset+4 );
-		ByteUtil.encodeInt32( ackNum, buffer, offset+8 );
+		int paddedOptionsSize = (optionsSize + 3) & ~3;
+		int headerSize = TCP_HEADER_SIZE + paddedOptionsSize;
+		int segmentSize = headerSize + dataSize;
+		int totalSize = IP6Packet.IP6_HEADER_SIZE + segmentSize;
+		if( off < 0 || off + totalSize > buf.length ) {
+			throw new IndexOutOfBoundsException( "Not enough room for "+totalSize+"-byte TCP packet at "+off+" in "+buf.length+"-byte buffer" );
+		}
 		
-		int dataOffsetWords = 5; // i.e. 20 bytes
-		int falgs = (dataOffsetWords << 12) | (flags & 0x1F);
-		ByteUtil.encodeInt16( falgs, buffer, offset+12 );
+		// IPv6 header; traffic class and flow label zero
+		ByteUtil.encodeInt32( 6 << 28, buf, off );
+		ByteUtil.encodeInt16( segmentSize, buf, off+4 );
+		buf[off+6] = (byte)TCP_PROTOCOL_NUMBER;
+		buf[off+7] = (byte)255;
+		System.arraycopy( sourceAddressBuffer, sourceAddressOffset, buf, off+IP6Packet.SOURCE_ADDRESS_OFFSET, IP6Packet.IP6_ADDRESS_SIZE );
+		System.arraycopy( destAddressBuffer, destAddressOffset, buf, off+IP6Packet.DESTINATION_ADDRESS_OFFSET, IP6Packet.IP6_ADDRESS_SIZE );
 		
-		ByteUtil.encodeInt16( windowSize, buffer, offset+14 );
+		int tcpOff = off + IP6Packet.IP6_HEADER_SIZE;
+		ByteUtil.encodeInt16( sourcePort, buf, tcpOff+0 );
+		ByteUtil.encodeInt16( destPort, buf, tcpOff+2 );
+		ByteUtil.encodeInt32( seqNum, buf, tcpOff+4 );
+		ByteUtil.encodeInt32( ackNum, buf, tcpOff+8 );
+		int falgs = ((headerSize >> 2) << 12) | (flags & 0xFFF);
+		ByteUtil.encodeInt16( falgs, buf, tcpOff+12 );
+		ByteUtil.encodeInt16( windowSize, buf, tcpOff+14 );
+		// Checksum is zero while summing; urgent pointer is always zero
+		ByteUtil.encodeInt32( 0, buf, tcpOff+16 );
 		
-		// Calculate checksum
-		// Note: could also just ICMP6Message.calculateIcmp6Checksum( m.ipPacket ) after putting the packet together...
-		byte[] checksumBuffer = new byte[60 + dataSize];
-		ByteUtil.copy( sourceAddressBuffer, sourceAddressOffset, checksumBuffer,  0, 16 );
-		ByteUtil.copy(   destAddressBuffer,   destAddressOffset, checksumBuffer, 16, 16 );
-		ByteUtil.encodeInt32( TCP_HEADER_SIZE + dataSize, checksumBuffer, 32 ); // 'TCP Length'
-		checksumBuffer[39] = TCP_PROTOCOL_NUMBER; // 'next header'
-		ByteUtil.copy( buffer, offset, checksumBuffer, 40, 16 ); // src/dest port, seq/ack num, falgs, windowSize
-		// Leave checksum and 'urgent pointer' zero
-		// Assuming no options.
-		ByteUtil.copy( dataBuffer, dataOffset, checksumBuffer, 60, dataSize );
-		long checksum = InternetChecksum.checksum(checksumBuffer);
+		if( optionsSize > 0 ) System.arraycopy( optionsBuffer, optionsOffset, buf, tcpOff+TCP_HEADER_SIZE, optionsSize );
+		for( int i=optionsSize; i<paddedOptionsSize; ++i ) buf[tcpOff+TCP_HEADER_SIZE+i] = 0;
+		if( dataSize > 0 && dataBuffer != null ) System.arraycopy( dataBuffer, dataOffset, buf, tcpOff+headerSize, dataSize );
 		
-		ByteUtil.encodeInt16( (short)checksum, buffer, offset+16 );
+		long sum = InternetChecksum.ip6PseudoHeaderSum(
+			buf, off+IP6Packet.SOURCE_ADDRESS_OFFSET,
+			buf, off+IP6Packet.DESTINATION_ADDRESS_OFFSET,
+			segmentSize, TCP_PROTOCOL_NUMBER );
+		sum = InternetChecksum.sum( buf, tcpOff, segmentSize, sum );
+		ByteUtil.encodeInt16( InternetChecksum.finish(sum), buf, tcpOff+16 );
 		
-		ByteUtil.copy( dataBuffer, dataOffset, buffer, offset+20, dataSize );
+		return totalSize;
+	}
+	
+	/**
+	 * Where encodeV6 will put the data, relative to the start of the packet,
+	 * given that many bytes of options
+	 */
+	public static int dataOffsetV6( int optionsSize ) {
+		return IP6Packet.IP6_HEADER_SIZE + TCP_HEADER_SIZE + ((optionsSize + 3) & ~3);
+	}
+	
+	/** encodeV6 with the addresses and ports taken from sap */
+	public static int encodeV6(
+		byte[] buf, int off, SocketAddressPair sap,
+		int seqNum, int ackNum, int flags, int windowSize,
+		byte[] optionsBuffer, int optionsOffset, int optionsSize,
+		byte[] dataBuffer, int dataOffset, int dataSize
+	) {
+		if( sap.getIpVersion() != 6 ) {
+			throw new RuntimeException("TCPSegment.encodeV6 given an IPv"+sap.getIpVersion()+" address pair");
+		}
+		return encodeV6( buf, off,
+			sap.getSourceAddressBuffer(), sap.getSourceAddressOffset(), sap.getSourcePort(),
+			sap.getDestinationAddressBuffer(), sap.getDestinationAddressOffset(), sap.getDestinationPort(),
+			seqNum, ackNum, flags, windowSize,
+			optionsBuffer, optionsOffset, optionsSize,
+			dataBuffer, dataOffset, dataSize );
+	}
+	
+	/**
+	 * Like encodeV6, but into a new buffer of just the right size.
+	 * The fields of the returned segment are filled in directly
+	 * rather than by parsing it back out.
+	 */
+	public static TCPSegment createV6(
+		byte[] sourceAddressBuffer, int sourceAddressOffset, int sourcePort,
+		byte[] destAddressBuffer, int destAddressOffset, int destPort,
+		int seqNum, int ackNum, int flags, int windowSize,
+		byte[] dataBuffer, int dataOffset, int dataSize
+	) {
+		int segmentSize = TCP_HEADER_SIZE + dataSize;
+		byte[] buffer = new byte[IP6Packet.IP6_HEADER_SIZE + segmentSize];
+		encodeV6( buffer, 0,
+			sourceAddressBuffer, sourceAddressOffset, sourcePort,
+			destAddressBuffer, destAddressOffset, destPort,
+			seqNum, ackNum, flags, windowSize,
+			null, 0, 0,
+			dataBuffer, dataOffset, dataSize );
 		
-		return TCPSegment.parse( p );
+		IP6Packet p = new IP6Packet( buffer, 0, buffer.length, segmentSize );
+		TCPSegment s = new TCPSegment( buffer, IP6Packet.IP6_HEADER_SIZE, segmentSize, p );
+		s.wellFormed = true;
+		s.sourcePort = sourcePort;
+		s.destPort = destPort;
+		s.sequenceNumber = seqNum;
+		s.ackNumber = ackNum;
+		s.flags = flags & 0xFFF;
+		s.windowSize = windowSize;
+		s.checksum = ByteUtil.decodeUInt16( buffer, IP6Packet.IP6_HEADER_SIZE + 16 );
+		s.optionsOffset = IP6Packet.IP6_HEADER_SIZE + TCP_HEADER_SIZE;
+		s.optionsSize = 0;
+		s.dataOffset = IP6Packet.IP6_HEADER_SIZE + TCP_HEADER_SIZE;
+		s.dataSize = dataSize;
+		return s;
 	}
 	
 	public static TCPSegment createV6(
-		byte[] sourceAddressBuffer,
-		byte[] destAddressBuffer,
+		byte[] sourceAddressBuffer, int sourcePort,
+		byte[] destAddressBuffer, int destPort,
 		int seqNum, int ackNum, int flags, int windowSize,
 		byte[] dataBuffer, int dataOffset, int dataSize
 	) {
 		return createV6(
-			sourceAddressBuffer, 0, sourceAddressBuffer.length,
-			destAddressBuffer, 0, destAddressBuffer.length,
+			sourceAddressBuffer, 0, sourcePort,
+			destAddressBuffer, 0, destPort,
 			seqNum, ackNum, flags, windowSize,
 			dataBuffer, dataOffset, dataSize
 		);
 	}
-
 	
 	public static TCPSegment create(
 		SocketAddressPair sap,
@@ -165,8 +246,9 @@ public class TCPSegment extends SimpleByteChunk
 		m.ackNumber = ByteUtil.decodeInt32( buffer, offset+8 );
 		int falgs = ByteUtil.decodeUInt16( buffer, offset+12 );
 		m.flags = falgs & 0xFFF;
+		m.windowSize = ByteUtil.decodeUInt16( buffer, offset+14 );
 		int dataOffset = ((falgs >> 12) & 0xF) << 2;
-		if( dataOffset >= 20 || dataOffset < size ) {
+		if( dataOffset >= 20 && dataOffset <= size ) {
 			m.optionsOffset = offset + 20;
 			m.optionsSize = dataOffset - 20;
 			m.dataOffset = offset + dataOffset;
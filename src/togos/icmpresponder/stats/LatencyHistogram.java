@@ -0,0 +1,62 @@
+package togos.icmpresponder.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with power-of-two buckets:
+ * bucket i counts durations d where 2^(i-1) <= d < 2^i
+ * (bucket 0 counts zeroes).
+ *
+ * Recording is a single striped increment, so it can be
+ * called from many threads without them contending.
+ */
+public class LatencyHistogram
+{
+	public static final int BUCKET_COUNT = 64;
+	
+	protected final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+	
+	public LatencyHistogram() {
+		for( int i=0; i<BUCKET_COUNT; ++i ) buckets[i] = new LongAdder();
+	}
+	
+	public void record( long duration ) {
+		if( duration < 0 ) duration = 0;
+		buckets[64 - Long.numberOfLeadingZeros(duration)].increment();
+	}
+	
+	/** @return a snapshot of the count in each bucket */
+	public long[] getCounts() {
+		long[] counts = new long[BUCKET_COUNT];
+		for( int i=0; i<BUCKET_COUNT; ++i ) counts[i] = buckets[i].sum();
+		return counts;
+	}
+	
+	/** Upper bound (exclusive) of durations counted by the given bucket */
+	public static long bucketUpperBound( int bucket ) {
+		return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+	}
+	
+	/**
+	 * @return an upper bound on the given fraction (0..1) of recorded
+	 *   durations, accurate to within a factor of two, or 0 if nothing
+	 *   has been recorded.
+	 */
+	public long getPercentile( double fraction ) {
+		long[] counts = getCounts();
+		long total = 0;
+		for( long c : counts ) total += c;
+		if( total == 0 ) return 0;
+		long threshold = (long)Math.ceil(total * fraction);
+		long seen = 0;
+		for( int i=0; i<BUCKET_COUNT; ++i ) {
+			seen += counts[i];
+			if( seen >= threshold ) return bucketUpperBound(i);
+		}
+		return Long.MAX_VALUE;
+	}
+	
+	public void reset() {
+		for( LongAdder b : buckets ) b.reset();
+	}
+}
@@ -0,0 +1,127 @@
+package togos.icmpresponder.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Counters for everything the responder does.
+ *
+ * Counters are LongAdders, which stripe their updates across cells
+ * so that worker threads incrementing the same counter don't fight
+ * over a cache line.  Reading a value sums the cells, which is
+ * relatively slow but only happens when someone looks.
+ */
+public class ResponderStats implements ResponderStatsMBean
+{
+	public static final String DEFAULT_OBJECT_NAME = "togos.icmpresponder:type=ResponderStats";
+	
+	public final LongAdder packetsIn = new LongAdder();
+	public final LongAdder bytesIn = new LongAdder();
+	public final LongAdder packetsOut = new LongAdder();
+	public final LongAdder bytesOut = new LongAdder();
+	public final LongAdder icmpEchoRequests = new LongAdder();
+	public final LongAdder icmpEchoReplies = new LongAdder();
+	public final LongAdder tcpSegmentsIn = new LongAdder();
+	public final LongAdder tcpSegmentsOut = new LongAdder();
+	/** Invalid IP packets, malformed TCP segments, and TCP segments with bad checksums */
+	public final LongAdder malformedPackets = new LongAdder();
+	/** Replies that couldn't be sent because of an exception */
+	public final LongAdder sendFailures = new LongAdder();
+	/** Replies dropped because we didn't know which peer to send them to */
+	public final LongAdder unroutablePackets = new LongAdder();
+	/** Incoming packets dropped because there was nowhere to queue them */
+	public final LongAdder droppedPackets = new LongAdder();
+	/** Incremented when a session is created, decremented when it goes away */
+	public final LongAdder activeTcpSessions = new LongAdder();
+	/** TCP segments sent again because they weren't acknowledged in time */
+	public final LongAdder tcpRetransmits = new LongAdder();
+	/** Times a TCP session went into fast recovery because duplicate acks or SACKs showed something was lost */
+	public final LongAdder tcpFastRetransmits = new LongAdder();
+	/** TCP sessions dropped because the other end stopped responding or went idle for too long */
+	public final LongAdder tcpSessionTimeouts = new LongAdder();
+	/** TCP segments that arrived ahead of a gap in the stream */
+	public final LongAdder tcpOutOfOrderSegments = new LongAdder();
+	/** Out-of-order TCP segments dropped because the reassembly queues were full */
+	public final LongAdder tcpReassemblyOverflows = new LongAdder();
+	/** SYN-ACKs sent with SYN cookies rather than a session being set up */
+	public final LongAdder tcpSynCookiesSent = new LongAdder();
+	/** Sessions set up from valid SYN cookies */
+	public final LongAdder tcpSynCookiesAccepted = new LongAdder();
+	/** ACKs for no session that didn't have a valid SYN cookie either */
+	public final LongAdder tcpSynCookiesRejected = new LongAdder();
+	/** Time from when IPPacketHandler is given a packet to when it's done with it */
+	public final LatencyHistogram handlingLatency = new LatencyHistogram();
+	/** Every round trip time measured by any TCP session, in nanoseconds (but only to the millisecond) */
+	public final LatencyHistogram tcpRoundTripTime = new LatencyHistogram();
+	
+	static ResponderStats defaultInstance;
+	public static synchronized ResponderStats getDefault() {
+		if( defaultInstance == null ) defaultInstance = new ResponderStats();
+		return defaultInstance;
+	}
+	
+	public void register( String objectName ) throws Exception {
+		ManagementFactory.getPlatformMBeanServer().registerMBean( this, new ObjectName(objectName) );
+	}
+	
+	public void register() throws Exception {
+		register( DEFAULT_OBJECT_NAME );
+	}
+	
+	public long getPacketsIn() { return packetsIn.sum(); }
+	public long getBytesIn() { return bytesIn.sum(); }
+	public long getPacketsOut() { return packetsOut.sum(); }
+	public long getBytesOut() { return bytesOut.sum(); }
+	public long getIcmpEchoRequests() { return icmpEchoRequests.sum(); }
+	public long getIcmpEchoReplies() { return icmpEchoReplies.sum(); }
+	public long getTcpSegmentsIn() { return tcpSegmentsIn.sum(); }
+	public long getTcpSegmentsOut() { return tcpSegmentsOut.sum(); }
+	public long getMalformedPackets() { return malformedPackets.sum(); }
+	public long getSendFailures() { return sendFailures.sum(); }
+	public long getUnroutablePackets() { return unroutablePackets.sum(); }
+	public long getDroppedPackets() { return droppedPackets.sum(); }
+	public long getActiveTcpSessions() { return activeTcpSessions.sum(); }
+	public long getTcpRetransmits() { return tcpRetransmits.sum(); }
+	public long getTcpFastRetransmits() { return tcpFastRetransmits.sum(); }
+	public long getTcpSessionTimeouts() { return tcpSessionTimeouts.sum(); }
+	public long getTcpOutOfOrderSegments() { return tcpOutOfOrderSegments.sum(); }
+	public long getTcpReassemblyOverflows() { return tcpReassemblyOverflows.sum(); }
+	public long getTcpSynCookiesSent() { return tcpSynCookiesSent.sum(); }
+	public long getTcpSynCookiesAccepted() { return tcpSynCookiesAccepted.sum(); }
+	public long getTcpSynCookiesRejected() { return tcpSynCookiesRejected.sum(); }
+	
+	public long getHandlingLatencyMedian() { return handlingLatency.getPercentile(0.5); }
+	public long getHandlingLatency99thPercentile() { return handlingLatency.getPercentile(0.99); }
+	public long[] getHandlingLatencyHistogram() { return handlingLatency.getCounts(); }
+	public long getTcpRoundTripTimeMedian() { return tcpRoundTripTime.getPercentile(0.5); }
+	public long getTcpRoundTripTime99thPercentile() { return tcpRoundTripTime.getPercentile(0.99); }
+	public long[] getTcpRoundTripTimeHistogram() { return tcpRoundTripTime.getCounts(); }
+	
+	/** Reset everything except activeTcpSessions, which is a gauge rather than a count */
+	public void reset() {
+		packetsIn.reset();
+		bytesIn.reset();
+		packetsOut.reset();
+		bytesOut.reset();
+		icmpEchoRequests.reset();
+		icmpEchoReplies.reset();
+		tcpSegmentsIn.reset();
+		tcpSegmentsOut.reset();
+		malformedPackets.reset();
+		sendFailures.reset();
+		unroutablePackets.reset();
+		droppedPackets.reset();
+		tcpRetransmits.reset();
+		tcpFastRetransmits.reset();
+		tcpSessionTimeouts.reset();
+		tcpOutOfOrderSegments.reset();
+		tcpReassemblyOverflows.reset();
+		tcpSynCookiesSent.reset();
+		tcpSynCookiesAccepted.reset();
+		tcpSynCookiesRejected.reset();
+		handlingLatency.reset();
+		tcpRoundTripTime.reset();
+	}
+}
@@ -0,0 +1,39 @@
+package togos.icmpresponder.stats;
+
+/**
+ * JMX view of ResponderStats.
+ * Latencies are in nanoseconds.
+ */
+public interface ResponderStatsMBean
+{
+	public long getPacketsIn();
+	public long getBytesIn();
+	public long getPacketsOut();
+	public long getBytesOut();
+	public long getIcmpEchoRequests();
+	public long getIcmpEchoReplies();
+	public long getTcpSegmentsIn();
+	public long getTcpSegmentsOut();
+	public long getMalformedPackets();
+	public long getSendFailures();
+	public long getUnroutablePackets();
+	public long getDroppedPackets();
+	public long getActiveTcpSessions();
+	public long getTcpRetransmits();
+	public long getTcpFastRetransmits();
+	public long getTcpSessionTimeouts();
+	public long getTcpOutOfOrderSegments();
+	public long getTcpReassemblyOverflows();
+	public long getTcpSynCookiesSent();
+	public long getTcpSynCookiesAccepted();
+	public long getTcpSynCookiesRejected();
+	
+	public long getHandlingLatencyMedian();
+	public long getHandlingLatency99thPercentile();
+	public long[] getHandlingLatencyHistogram();
+	public long getTcpRoundTripTimeMedian();
+	public long getTcpRoundTripTime99thPercentile();
+	public long[] getTcpRoundTripTimeHistogram();
+	
+	public void reset();
+}
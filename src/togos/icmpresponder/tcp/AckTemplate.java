@@ -0,0 +1,76 @@
+package togos.icmpresponder.tcp;
+
+import togos.icmpresponder.ByteUtil;
+import togos.icmpresponder.InternetChecksum;
+import togos.icmpresponder.SocketAddressPair;
+import togos.icmpresponder.packet.IP6Packet;
+import togos.icmpresponder.packet.TCPOptions;
+import togos.icmpresponder.packet.TCPSegment;
+
+/**
+ * A pure ACK for one connection, kept ready to send.
+ * From one to the next only the sequence number, ack number,
+ * window and timestamps change, so those are written in place
+ * and the checksum adjusted for them (RFC 1624) instead of the
+ * whole thing being encoded and summed again.
+ */
+public class AckTemplate
+{
+	public static final int TCP_OFFSET = IP6Packet.IP6_HEADER_SIZE;
+	public static final int SEQUENCE_OFFSET = TCP_OFFSET + 4;
+	public static final int ACK_OFFSET = TCP_OFFSET + 8;
+	public static final int WINDOW_OFFSET = TCP_OFFSET + 14;
+	public static final int CHECKSUM_OFFSET = TCP_OFFSET + 16;
+	/** Where the values go in the timestamps option, after two NOPs, kind and length */
+	public static final int TIMESTAMP_VALUE_OFFSET = TCP_OFFSET + TCPSegment.TCP_HEADER_SIZE + 4;
+	public static final int TIMESTAMP_ECHO_OFFSET = TIMESTAMP_VALUE_OFFSET + 4;
+	
+	public final byte[] packet;
+	public final int size;
+	final boolean timestamps;
+	/** What's currently in the packet */
+	int sequence, ack, window, timestampValue, timestampEcho;
+	
+	public AckTemplate( SocketAddressPair rap, boolean timestamps ) {
+		this.timestamps = timestamps;
+		TCPOptions opts = new TCPOptions();
+		opts.hasTimestamps = timestamps;
+		byte[] optionsBuffer = new byte[12];
+		int optionsSize = opts.encode( optionsBuffer, 0 );
+		this.packet = new byte[TCPSegment.dataOffsetV6(optionsSize)];
+		this.size = TCPSegment.encodeV6( packet, 0, rap, 0, 0, TCPFlags.ACK, 0, optionsBuffer, 0, optionsSize, null, 0, 0 );
+	}
+	
+	/** Put new values into the packet, adjusting the checksum to suit */
+	public void update( int sequence, int ack, int window, int timestampValue, int timestampEcho ) {
+		int checksum = ByteUtil.decodeUInt16( packet, CHECKSUM_OFFSET );
+		if( sequence != this.sequence ) {
+			checksum = InternetChecksum.update32( checksum, this.sequence, sequence );
+			ByteUtil.encodeInt32( sequence, packet, SEQUENCE_OFFSET );
+			this.sequence = sequence;
+		}
+		if( ack != this.ack ) {
+			checksum = InternetChecksum.update32( checksum, this.ack, ack );
+			ByteUtil.encodeInt32( ack, packet, ACK_OFFSET );
+			this.ack = ack;
+		}
+		if( window != this.window ) {
+			checksum = InternetChecksum.update16( checksum, this.window, window );
+			ByteUtil.encodeInt16( window, packet, WINDOW_OFFSET );
+			this.window = window;
+		}
+		if( timestamps ) {
+			if( timestampValue != this.timestampValue ) {
+				checksum = InternetChecksum.update32( checksum, this.timestampValue, timestampValue );
+				ByteUtil.encodeInt32( timestampValue, packet, TIMESTAMP_VALUE_OFFSET );
+				this.timestampValue = timestampValue;
+			}
+			if( timestampEcho != this.timestampEcho ) {
+				checksum = InternetChecksum.update32( checksum, this.timestampEcho, timestampEcho );
+				ByteUtil.encodeInt32( timestampEcho, packet, TIMESTAMP_ECHO_OFFSET );
+				this.timestampEcho = timestampEcho;
+			}
+		}
+		ByteUtil.encodeInt16( checksum, packet, CHECKSUM_OFFSET );
+	}
+}
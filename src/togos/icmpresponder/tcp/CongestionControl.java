@@ -0,0 +1,78 @@
+package togos.icmpresponder.tcp;
+
+/**
+ * Decides how much data a connection may have in flight.
+ * One of these per connection; the TCP handler tells it about
+ * acks and losses, and won't let more than cwnd bytes be
+ * outstanding.  Loss detection and recovery (which segments to
+ * resend when) is the handler's business.
+ * 
+ * Slow start is the same for everything here; subclasses decide
+ * how to grow the window after that and how to shrink it on loss.
+ */
+public abstract class CongestionControl
+{
+	public interface Factory {
+		public CongestionControl create( int mss, long now );
+	}
+	
+	public static final Factory NEW_RENO = new Factory() {
+		public CongestionControl create( int mss, long now ) { return new NewRenoCongestionControl( mss ); }
+		public String toString() { return "newreno"; }
+	};
+	public static final Factory CUBIC = new Factory() {
+		public CongestionControl create( int mss, long now ) { return new CubicCongestionControl( mss, now ); }
+		public String toString() { return "cubic"; }
+	};
+	
+	public static Factory getFactory( String name ) {
+		if( "newreno".equals(name) ) return NEW_RENO;
+		if( "cubic".equals(name) ) return CUBIC;
+		throw new RuntimeException("Unknown congestion control algorithm: "+name);
+	}
+	
+	protected final int mss;
+	/** Congestion window, in bytes */
+	public int cwnd;
+	/** Slow start threshold, in bytes */
+	public int ssthresh = Integer.MAX_VALUE;
+	
+	protected CongestionControl( int mss ) {
+		this.mss = mss;
+		// RFC 6928's initial window
+		this.cwnd = Math.min( 10 * mss, Math.max( 2 * mss, 14600 ) );
+	}
+	
+	public boolean inSlowStart() { return cwnd < ssthresh; }
+	
+	/** New data's been acknowledged (outside of loss recovery) */
+	public void onAck( int ackedBytes, long now ) {
+		if( inSlowStart() ) {
+			// RFC 5681 section 3.1, with appropriate byte counting (RFC 3465) limited to 1 MSS
+			cwnd += Math.min( ackedBytes, mss );
+		} else {
+			congestionAvoidance( ackedBytes, now );
+		}
+	}
+	
+	protected abstract void congestionAvoidance( int ackedBytes, long now );
+	
+	/**
+	 * Loss detected by duplicate acks or SACKs; entering fast recovery,
+	 * during which the window's held at whatever this sets it to.
+	 */
+	public abstract void onCongestion( int flightSize, long now );
+	
+	/** Everything that was outstanding when recovery started has been acked */
+	public void onRecoveryComplete( long now ) { }
+	
+	/** The retransmission timer went off, which is taken as a bigger hint */
+	public void onRetransmitTimeout( int flightSize, long now ) {
+		onCongestion( flightSize, now );
+		cwnd = mss;
+	}
+	
+	public String toString() {
+		return getClass().getSimpleName()+" cwnd="+cwnd+" ssthresh="+ssthresh;
+	}
+}
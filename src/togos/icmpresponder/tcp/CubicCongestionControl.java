@@ -0,0 +1,68 @@
+package togos.icmpresponder.tcp;
+
+/**
+ * CUBIC (RFC 9438): after a loss, the window grows along a cubic
+ * curve, quickly at first, levelling off around the size it was when
+ * the loss happened, then probing beyond it.  Growth depends on time
+ * since the loss rather than on round trips, so long, fat paths fill
+ * up about as quickly as short ones.  It's never slower than
+ * Reno would be.
+ */
+public class CubicCongestionControl extends CongestionControl
+{
+	static final double C = 0.4;
+	static final double BETA = 0.7;
+	/** Reno-friendly additive increase, in segments per round trip */
+	static final double ALPHA = 3 * (1 - BETA) / (1 + BETA);
+	
+	/** Window (in segments) when the last loss happened */
+	protected double wMax;
+	/** Time (seconds after epochStart) at which the curve gets back to wMax */
+	protected double k;
+	protected long epochStart = -1;
+	/** What Reno's window (in segments) would be by now */
+	protected double wEst;
+	
+	public CubicCongestionControl( int mss, long now ) {
+		super( mss );
+	}
+	
+	protected void congestionAvoidance( int ackedBytes, long now ) {
+		double cwndSegments = (double)cwnd / mss;
+		if( epochStart < 0 ) {
+			// First time in congestion avoidance without a loss to start from
+			epochStart = now;
+			wMax = cwndSegments;
+			k = 0;
+			wEst = cwndSegments;
+		}
+		double t = (now - epochStart) / 1000.0;
+		double target = C * (t - k) * (t - k) * (t - k) + wMax;
+		wEst += ALPHA * ((double)ackedBytes / mss) / cwndSegments;
+		target = Math.max( target, wEst );
+		// Don't grow by more than half again per round trip
+		target = Math.min( target, 1.5 * cwndSegments );
+		if( target > cwndSegments ) {
+			cwnd += Math.max( 1, (int)((target - cwndSegments) / cwndSegments * ackedBytes) );
+		}
+	}
+	
+	public void onCongestion( int flightSize, long now ) {
+		double cwndSegments = (double)cwnd / mss;
+		// Fast convergence: if this loss came before getting back
+		// to the last wMax, leave more room for other flows
+		wMax = cwndSegments < wMax ? cwndSegments * (1 + BETA) / 2 : cwndSegments;
+		ssthresh = Math.max( (int)(cwnd * BETA), 2 * mss );
+		cwnd = ssthresh;
+		// From wherever cwnd ended up, which isn't wMax * BETA after fast convergence
+		k = Math.cbrt( Math.max( 0, wMax - (double)cwnd / mss ) / C );
+		epochStart = now;
+		wEst = (double)cwnd / mss;
+	}
+	
+	public void onRetransmitTimeout( int flightSize, long now ) {
+		super.onRetransmitTimeout( flightSize, now );
+		// The curve starts over once slow start's done
+		epochStart = -1;
+	}
+}
@@ -0,0 +1,29 @@
+package togos.icmpresponder.tcp;
+
+/**
+ * RFC 5681 congestion avoidance: about one MSS more per round trip,
+ * and halving the window on loss.
+ */
+public class NewRenoCongestionControl extends CongestionControl
+{
+	/** Bytes acked since cwnd was last increased, in congestion avoidance */
+	protected int bytesAcked;
+	
+	public NewRenoCongestionControl( int mss ) {
+		super( mss );
+	}
+	
+	protected void congestionAvoidance( int ackedBytes, long now ) {
+		bytesAcked += ackedBytes;
+		if( bytesAcked >= cwnd ) {
+			bytesAcked -= cwnd;
+			cwnd += mss;
+		}
+	}
+	
+	public void onCongestion( int flightSize, long now ) {
+		ssthresh = Math.max( flightSize / 2, 2 * mss );
+		cwnd = ssthresh;
+		bytesAcked = 0;
+	}
+}
@@ -0,0 +1,60 @@
+package togos.icmpresponder.tcp;
+
+/**
+ * Keeps track of a connection's round trip time and works out
+ * a retransmission timeout from it, as per RFC 6298.
+ * 
+ * The smoothed RTT and its variation are kept scaled by 8 and 4
+ * (as in the original Jacobson/Karels code) so that the averaging
+ * doesn't lose everything below a millisecond.
+ */
+class RTTEstimator
+{
+	final int minRto, maxRto, granularity;
+	
+	/** Smoothed round trip time in milliseconds, times 8, or -1 if there's been no sample yet */
+	int srtt8 = -1;
+	/** Round trip time variation in milliseconds, times 4 */
+	int rttvar4;
+	/** Timeout according to the measurements */
+	int baseRto;
+	/** Number of times the timeout's been doubled since the last measurement */
+	int backoff;
+	
+	public RTTEstimator( int initialRto, int minRto, int maxRto, int granularity ) {
+		this.baseRto = initialRto;
+		this.minRto = minRto;
+		this.maxRto = maxRto;
+		this.granularity = granularity;
+	}
+	
+	public boolean hasSample() { return srtt8 >= 0; }
+	/** @return the smoothed round trip time, in milliseconds, or -1 if unknown */
+	public int getSmoothedRtt() { return srtt8 < 0 ? -1 : srtt8 >> 3; }
+	public int getRttVariation() { return rttvar4 >> 2; }
+	
+	/** @return the current retransmission timeout, in milliseconds */
+	public int getRto() {
+		return Math.min( baseRto << backoff, maxRto );
+	}
+	
+	public void addSample( int rtt ) {
+		if( rtt < 0 ) return;
+		if( srtt8 < 0 ) {
+			srtt8 = rtt << 3;
+			rttvar4 = rtt << 1;
+		} else {
+			int err = rtt - (srtt8 >> 3);
+			// srtt += err/8, rttvar += (|err| - rttvar)/4
+			srtt8 += err;
+			rttvar4 += Math.abs(err) - (rttvar4 >> 2);
+		}
+		baseRto = Math.max( minRto, Math.min( maxRto, (srtt8 >> 3) + Math.max( granularity, rttvar4 ) ) );
+		backoff = 0;
+	}
+	
+	/** The timer went off; double the timeout until there's a new measurement */
+	public void backOff() {
+		if( getRto() < maxRto ) ++backoff;
+	}
+}
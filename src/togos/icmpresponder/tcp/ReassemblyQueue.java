@@ -0,0 +1,127 @@
+package togos.icmpresponder.tcp;
+
+/**
+ * Holds data that arrived ahead of a gap in the incoming stream
+ * until the gap is filled.
+ * 
+ * Kept as a list of non-overlapping blocks sorted by sequence number.
+ * Data that overlaps what's already held is trimmed off before being
+ * stored, so each byte is held at most once.  Overlap with data that's
+ * already been delivered is up to the caller to trim.
+ * 
+ * Memory use is counted (as bytes plus a fixed overhead per block)
+ * so that the caller can enforce limits on it.
+ */
+class ReassemblyQueue
+{
+	/** Rough size of a Block object and its array header */
+	static final int BLOCK_OVERHEAD = 64;
+	
+	static class Block {
+		final int seq;
+		final byte[] data;
+		Block next;
+		
+		Block( int seq, byte[] buf, int off, int len ) {
+			this.seq = seq;
+			this.data = new byte[len];
+			System.arraycopy( buf, off, data, 0, len );
+		}
+		
+		int end() { return seq + data.length; }
+	}
+	
+	Block first;
+	/** Bytes held plus BLOCK_OVERHEAD per block */
+	int memoryUsed;
+	/** True if a FIN has been received; finSequence is then its sequence number */
+	boolean finQueued;
+	int finSequence;
+	/** Where the most recently added data started, so it can be reported first in SACK blocks */
+	int lastAddedSequence;
+	
+	public boolean isEmpty() {
+		return first == null && !finQueued;
+	}
+	
+	/**
+	 * Counts, or stores, the parts of [seq, seq+len) that aren't already held.
+	 * @return the memory needed to store them
+	 */
+	protected int fillGaps( int seq, byte[] buf, int off, int len, boolean store ) {
+		int end = seq + len;
+		int needed = 0;
+		int cursor = seq;
+		Block prev = null, b = first;
+		while( TCPSequence.before( cursor, end ) ) {
+			if( b != null && TCPSequence.beforeOrAt( b.end(), cursor ) ) {
+				// Entirely before what's left of the new data
+				prev = b;
+				b = b.next;
+				continue;
+			}
+			int gapEnd = b == null || TCPSequence.afterOrAt( b.seq, end ) ? end : b.seq;
+			if( TCPSequence.before( cursor, gapEnd ) ) {
+				needed += gapEnd - cursor + BLOCK_OVERHEAD;
+				if( store ) {
+					Block n = new Block( cursor, buf, off + (cursor - seq), gapEnd - cursor );
+					n.next = b;
+					if( prev == null ) first = n;
+					else prev.next = n;
+					prev = n;
+				}
+				cursor = gapEnd;
+			} else {
+				// Cursor's within b; skip over it
+				cursor = b.end();
+				prev = b;
+				b = b.next;
+			}
+		}
+		return needed;
+	}
+	
+	/**
+	 * Store whatever parts of the given segment data aren't already held.
+	 * Data at or after a queued FIN is ignored.
+	 * 
+	 * @param memoryLimit the most additional memory the caller's
+	 *   willing for this to use
+	 * @return how much more memory is now used, or -1 if the
+	 *   segment was dropped for want of memory
+	 */
+	public int add( int seq, byte[] buf, int off, int len, boolean fin, int memoryLimit ) {
+		if( finQueued && TCPSequence.after( seq + len, finSequence ) ) {
+			len = Math.max( 0, finSequence - seq );
+			fin = false;
+		}
+		int needed = fillGaps( seq, buf, off, len, false );
+		if( needed > memoryLimit ) return -1;
+		if( needed > 0 ) fillGaps( seq, buf, off, len, true );
+		if( fin && !finQueued ) {
+			finQueued = true;
+			finSequence = seq + len;
+		}
+		memoryUsed += needed;
+		lastAddedSequence = seq;
+		return needed;
+	}
+	
+	/** Remove and return the first block */
+	public Block removeFirst() {
+		Block b = first;
+		first = b.next;
+		b.next = null;
+		memoryUsed -= b.data.length + BLOCK_OVERHEAD;
+		return b;
+	}
+	
+	/** Drop everything; @return the memory that frees up */
+	public int clear() {
+		int freed = memoryUsed;
+		first = null;
+		memoryUsed = 0;
+		finQueued = false;
+		return freed;
+	}
+}
@@ -0,0 +1,90 @@
+package togos.icmpresponder.tcp;
+
+/**
+ * Which ranges of the data we've sent the other end has told us
+ * (with SACK options) that it's received, beyond what it's acked.
+ * 
+ * Kept as a short sorted array of non-overlapping, non-adjacent
+ * ranges.  If it fills up, the highest ranges are forgotten,
+ * which at worst means some data gets sent again.
+ */
+class SackScoreboard
+{
+	static final int MAX_RANGES = 16;
+	
+	final int[] starts = new int[MAX_RANGES];
+	final int[] ends = new int[MAX_RANGES];
+	int count;
+	
+	public boolean isEmpty() { return count == 0; }
+	
+	public void clear() { count = 0; }
+	
+	/** Record that [start, end) has been received */
+	public void add( int start, int end ) {
+		if( !TCPSequence.before( start, end ) ) return;
+		int i = 0;
+		while( i < count && TCPSequence.before( ends[i], start ) ) ++i;
+		// Merge with anything it overlaps or touches
+		int j = i;
+		while( j < count && TCPSequence.beforeOrAt( starts[j], end ) ) {
+			start = TCPSequence.min( start, starts[j] );
+			end = TCPSequence.max( end, ends[j] );
+			++j;
+		}
+		int merged = j - i;
+		if( merged == 0 ) {
+			if( count == MAX_RANGES ) {
+				if( i == count ) return;
+				--count;
+			}
+			System.arraycopy( starts, i, starts, i+1, count - i );
+			System.arraycopy( ends, i, ends, i+1, count - i );
+			++count;
+		} else if( merged > 1 ) {
+			System.arraycopy( starts, j, starts, i+1, count - j );
+			System.arraycopy( ends, j, ends, i+1, count - j );
+			count -= merged - 1;
+		}
+		starts[i] = start;
+		ends[i] = end;
+	}
+	
+	/** Forget about everything before seq, which has been cumulatively acked */
+	public void discardBefore( int seq ) {
+		int i = 0;
+		while( i < count && TCPSequence.beforeOrAt( ends[i], seq ) ) ++i;
+		if( i > 0 ) {
+			System.arraycopy( starts, i, starts, 0, count - i );
+			System.arraycopy( ends, i, ends, 0, count - i );
+			count -= i;
+		}
+		if( count > 0 && TCPSequence.before( starts[0], seq ) ) starts[0] = seq;
+	}
+	
+	/** @return the end of the SACKed range seq is in, or seq if it isn't in one */
+	public int skipSacked( int seq ) {
+		for( int i=0; i<count; ++i ) {
+			if( TCPSequence.after( starts[i], seq ) ) break;
+			if( TCPSequence.before( seq, ends[i] ) ) return ends[i];
+		}
+		return seq;
+	}
+	
+	/** @return the start of the first SACKed range after seq, or limit if that's sooner */
+	public int nextSackedAfter( int seq, int limit ) {
+		for( int i=0; i<count; ++i ) {
+			if( TCPSequence.after( starts[i], seq ) ) return TCPSequence.min( starts[i], limit );
+		}
+		return limit;
+	}
+	
+	/** @return the number of SACKed bytes after seq */
+	public int sackedBytesAfter( int seq ) {
+		int total = 0;
+		for( int i=count-1; i>=0 && TCPSequence.after( ends[i], seq ); --i ) {
+			total += ends[i] - TCPSequence.max( starts[i], seq );
+		}
+		return total;
+	}
+}
@@ -0,0 +1,104 @@
+package togos.icmpresponder.tcp;
+
+import java.util.Random;
+
+import togos.icmpresponder.FlowKey;
+
+/**
+ * Makes and checks SYN cookies: initial sequence numbers that hold
+ * what we'd otherwise have to remember about a half-open connection,
+ * so that nothing needs to be kept until the ACK that completes
+ * the handshake comes back with the cookie (plus one) in it.
+ * 
+ * The layout is Bernstein's:
+ * 
+ *   top 5 bits: a counter that goes up every 64 seconds, mod 32
+ *   next 3 bits: which of MSS_TABLE the other end's MSS was rounded down to
+ *   bottom 24 bits: a keyed hash of the counter, MSS index, addresses,
+ *     ports and the other end's initial sequence number
+ * 
+ * The hash is SipHash-2-4 with a random key, so cookies can't be
+ * forged without seeing one for the same addresses and ports.
+ * Only one thread should use an instance at a time.
+ */
+public class SynCookies
+{
+	static final int[] MSS_TABLE = { 536, 1220, 1360, 1400, 1420, 1440, 4036, 8940 };
+	static final long COUNTER_PERIOD_MILLIS = 64000;
+	/** Cookies from this many counter periods ago are still good */
+	static final int MAX_AGE = 1;
+	/** Longest a cookie can be good for */
+	static final long LIFETIME_MILLIS = (MAX_AGE + 1) * COUNTER_PERIOD_MILLIS;
+	
+	final long k0, k1;
+	/** SipHash state */
+	long v0, v1, v2, v3;
+	
+	public SynCookies( Random rand ) {
+		this.k0 = rand.nextLong();
+		this.k1 = rand.nextLong();
+	}
+	
+	static int mssIndex( int mss ) {
+		int i = MSS_TABLE.length - 1;
+		while( i > 0 && MSS_TABLE[i] > mss ) --i;
+		return i;
+	}
+	
+	protected void sipRound() {
+		v0 += v1; v1 = Long.rotateLeft( v1, 13 ); v1 ^= v0; v0 = Long.rotateLeft( v0, 32 );
+		v2 += v3; v3 = Long.rotateLeft( v3, 16 ); v3 ^= v2;
+		v0 += v3; v3 = Long.rotateLeft( v3, 21 ); v3 ^= v0;
+		v2 += v1; v1 = Long.rotateLeft( v1, 17 ); v1 ^= v2; v2 = Long.rotateLeft( v2, 32 );
+	}
+	
+	protected void compress( long m ) {
+		v3 ^= m;
+		sipRound();
+		sipRound();
+		v0 ^= m;
+	}
+	
+	protected int hash( FlowKey k, int theirIsn, int counter, int mssIndex ) {
+		v0 = k0 ^ 0x736f6d6570736575L;
+		v1 = k1 ^ 0x646f72616e646f6dL;
+		v2 = k0 ^ 0x6c7967656e657261L;
+		v3 = k1 ^ 0x7465646279746573L;
+		compress( k.sourceHi );
+		compress( k.sourceLo );
+		compress( k.destHi );
+		compress( k.destLo );
+		compress( ((long)k.ports << 32) | (theirIsn & 0xFFFFFFFFL) );
+		compress( ((long)counter << 8) | mssIndex );
+		// Final block: just the length (48 bytes)
+		compress( 48L << 56 );
+		v2 ^= 0xFF;
+		for( int i=0; i<4; ++i ) sipRound();
+		long h = v0 ^ v1 ^ v2 ^ v3;
+		return (int)(h ^ (h >>> 32));
+	}
+	
+	/**
+	 * @param k key of the SYN (i.e. its addresses and ports)
+	 * @return an initial sequence number to reply with
+	 */
+	public int make( FlowKey k, int theirIsn, int mss, long now ) {
+		int counter = (int)(now / COUNTER_PERIOD_MILLIS);
+		int index = mssIndex( mss );
+		return ((counter & 0x1F) << 27) | (index << 24) | (hash( k, theirIsn, counter, index ) & 0xFFFFFF);
+	}
+	
+	/**
+	 * @param k key of the ACK, which is the same as that of the SYN
+	 * @param cookie what they acked, less one
+	 * @return the MSS the cookie was made with, or -1 if it's not one of ours (or too old)
+	 */
+	public int check( FlowKey k, int theirIsn, int cookie, long now ) {
+		int counter = (int)(now / COUNTER_PERIOD_MILLIS);
+		int age = (counter - (cookie >>> 27)) & 0x1F;
+		if( age > MAX_AGE ) return -1;
+		int index = (cookie >>> 24) & 0x7;
+		if( (hash( k, theirIsn, counter - age, index ) & 0xFFFFFF) != (cookie & 0xFFFFFF) ) return -1;
+		return MSS_TABLE[index];
+	}
+}
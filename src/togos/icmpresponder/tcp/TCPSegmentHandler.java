@@ -1,18 +1,95 @@
 package togos.icmpresponder.tcp;
 
+import java.security.SecureRandom;
 import java.util.Random;
 
 import togos.blob.SimpleByteChunk;
+import togos.icmpresponder.FlowKey;
+import togos.icmpresponder.FlowTable;
+import togos.icmpresponder.RawPacketSink;
+import togos.icmpresponder.SimpleSocketAddressPair;
 import togos.icmpresponder.Sink;
 import togos.icmpresponder.SocketAddressPair;
+import togos.icmpresponder.TimerDriven;
+import togos.icmpresponder.TimerWheel;
+import togos.icmpresponder.log.PacketLog;
+import togos.icmpresponder.packet.IP6Packet;
+import togos.icmpresponder.packet.IPPacket;
+import togos.icmpresponder.packet.PacketContext;
+import togos.icmpresponder.packet.TCPDecoder;
+import togos.icmpresponder.packet.TCPOptions;
 import togos.icmpresponder.packet.TCPSegment;
+import togos.icmpresponder.stats.ResponderStats;
 
 /**
- * Single-threaded class for tracking TCP connections
+ * Single-threaded class for tracking TCP connections.
+ * 
+ * Timers (retransmission, delayed acks, keepalive, idle expiry) run off a TimerWheel
+ * that whoever's feeding us segments must drive by calling advanceTime.
  */
-public class TCPSegmentHandler implements Sink<TCPSegment>
+public class TCPSegmentHandler implements Sink<TCPSegment>, TimerDriven
 {
-	static final int WINDOW_SIZE = 32768;
+	/** Largest IP packet we'll send, unless told otherwise */
+	public static final int DEFAULT_MTU = 1500;
+	/** MSS to assume if the other end doesn't say (RFC 8200's minimum MTU less headers) */
+	static final int DEFAULT_IP6_MSS = 1220;
+	/**
+	 * How much received data a session can have waiting to be dealt with,
+	 * which for the echo handler means echoed back but not yet acknowledged.
+	 * This is what our receive window is, less whatever's waiting.
+	 */
+	static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+	/** Window scale we ask for: enough to advertise the whole receive buffer */
+	static final int RECEIVE_WINDOW_SCALE = windowScaleFor( RECEIVE_BUFFER_SIZE );
+	
+	static final long TIMER_TICK_MILLIS = 10;
+	static final int TIMER_SLOTS = 512;
+	/**
+	 * Retransmission timeout until the round trip time's been measured
+	 * (RFC 6298); doubles with each retransmission
+	 */
+	static final int INITIAL_RTO_MILLIS = 1000;
+	/** Less than RFC 6298's 1 second, which is a long time to wait over a fast link */
+	static final int MIN_RTO_MILLIS = 200;
+	static final int MAX_RTO_MILLIS = 60000;
+	/** Give up on a connection after retransmitting this many times in a row */
+	static final int MAX_RETRANSMITS = 8;
+	/** How long a connection can be quiet before we check the other end's still there */
+	static final long KEEPALIVE_IDLE_MILLIS = 60000;
+	static final long KEEPALIVE_INTERVAL_MILLIS = 10000;
+	/** Give up after this many keepalive probes in a row go unanswered */
+	static final int KEEPALIVE_PROBES = 5;
+	/**
+	 * Drop a connection (with a RST) if no data, SYN or FIN
+	 * has gone either way for this long, even if the other end's
+	 * still answering keepalives
+	 */
+	static final long IDLE_TIMEOUT_MILLIS = 10 * 60000;
+	/**
+	 * Longest we'll wait to acknowledge data in case the ack can go along
+	 * with something else, or cover another segment too (RFC 5681 section 4.2)
+	 */
+	static final long DELAYED_ACK_MILLIS = 40;
+	/** Ack right away once this many segments' worth of data are waiting to be acked */
+	static final int DELAYED_ACK_SEGMENTS = 2;
+	/**
+	 * Fast retransmit after this many duplicate acks, or once more than
+	 * (DUP_THRESHOLD - 1) full segments' worth after a hole have been SACKed
+	 */
+	static final int DUP_THRESHOLD = 3;
+	/**
+	 * Most segments to send in one go, so that a window opening up
+	 * all at once doesn't become one big burst through the tunnel
+	 */
+	static final int MAX_BURST_SEGMENTS = 16;
+	/** Room for a whole window's worth of out-of-order data in up to 64 pieces */
+	static final int MAX_REASSEMBLY_MEMORY_PER_SESSION = RECEIVE_BUFFER_SIZE + 64 * ReassemblyQueue.BLOCK_OVERHEAD;
+	
+	static int windowScaleFor( int bufferSize ) {
+		int shift = 0;
+		while( (bufferSize >> shift) > 0xFFFF ) ++shift;
+		return shift;
+	}
 	
 	/** Sends outgoing data */
 	static interface TCPDataWriter {
@@ -24,9 +101,21 @@ public class TCPSegmentHandler implements Sink<TCPSegment>
 		void handleData( byte[] data, int off, int len, boolean fin, TCPDataWriter out );
 	}
 	
+	/**
+	 * Data we've been asked to send that hasn't been acknowledged yet,
+	 * kept in a circular buffer: writing appends at the tail and acking
+	 * just moves the head along, so each byte is only copied in once
+	 * and out once per segment it's sent in.
+	 * The ring doubles in size when full (so is always a power of two).
+	 */
 	static class TCPOutputBuffer implements TCPDataWriter {
-		/** Data that has yet to be acknowledged by the other end */
-		protected byte[] buffer = SimpleByteChunk.EMPTY_BYTE_ARRAY;
+		static final int MIN_CAPACITY = 1024;
+		
+		protected byte[] ring = SimpleByteChunk.EMPTY_BYTE_ARRAY;
+		/** Index in ring of the first unacknowledged byte */
+		protected int head;
+		/** Number of unacknowledged bytes */
+		protected int length;
 		protected boolean synAcked;
 		protected boolean closed, closeAcked;
 		/**
@@ -44,29 +133,29 @@ public class TCPSegmentHandler implements Sink<TCPSegment>
 			this.sequence = sendSequence + 1;  // 1 = the syn that we must send in the first packet
 		}
 		
-		static byte[] append( byte[] a, byte[] b, int boff, int blen ) {
-			assert( boff >= 0 );
-			assert( boff <= b.length );
-			assert( boff + blen <= b.length );
-			
-			byte[] c = new byte[a.length + blen];
-			for( int i=0; i<a.length; ++i ) c[i] = a[i];
-			for( int i=0; i<blen; ++i ) c[a.length+i] = b[boff+i];
-			return c;
+		/** Number of bytes written but not yet acknowledged */
+		public int size() { return length; }
+		
+		protected void ensureCapacity( int needed ) {
+			if( needed <= ring.length ) return;
+			int capacity = Math.max( ring.length, MIN_CAPACITY );
+			while( capacity < needed ) capacity <<= 1;
+			byte[] newRing = new byte[capacity];
+			copyTo( 0, newRing, 0, length );
+			ring = newRing;
+			head = 0;
 		}
 		
-		static byte[] slice( byte[] buf, int off ) {
-			assert( off >= 0 );
-			assert( off < buf.length );
-			
-			if( off == 0 ) return buf;
-			if( off == buf.length ) return SimpleByteChunk.EMPTY_BYTE_ARRAY;
-			
-			byte[] newBuf = new byte[buf.length-off];
-			for( int i=0; i<newBuf.length; ++i ) {
-				newBuf[i] = buf[off+i];
-			}
-			return newBuf;
+		/**
+		 * Copy len bytes, starting from the from'th unacknowledged one, into dest.
+		 */
+		public void copyTo( int from, byte[] dest, int destOffset, int len ) {
+			assert( from >= 0 && from + len <= length );
+			if( len == 0 ) return;
+			int start = (head + from) & (ring.length - 1);
+			int firstPart = Math.min( len, ring.length - start );
+			System.arraycopy( ring, start, dest, destOffset, firstPart );
+			if( len > firstPart ) System.arraycopy( ring, 0, dest, destOffset + firstPart, len - firstPart );
 		}
 		
 		/**
@@ -78,7 +167,21 @@ public class TCPSegmentHandler implements Sink<TCPSegment>
 			assert( len >= 0 );
 			
 			if( close ) closed = true;
-			if( len > 0 ) buffer = append( buffer, data, off, len );
+			if( len == 0 ) return;
+			
+			ensureCapacity( length + len );
+			int tail = (head + length) & (ring.length - 1);
+			int firstPart = Math.min( len, ring.length - tail );
+			System.arraycopy( data, off, ring, tail, firstPart );
+			if( len > firstPart ) System.arraycopy( data, off + firstPart, ring, 0, len - firstPart );
+			length += len;
+		}
+		
+		protected void discard( int count ) {
+			length -= count;
+			// Start again at the beginning when empty, which
+			// makes it less likely that segments will wrap
+			head = length == 0 ? 0 : (head + count) & (ring.length - 1);
 		}
 		
 		/**
@@ -86,22 +189,21 @@ public class TCPSegmentHandler implements Sink<TCPSegment>
 		 */
 		protected void ack( int seq ) {
 			synAcked = true;
-			if( seq < sequence ) return;
+			if( TCPSequence.before( seq, sequence ) ) return;
 			
-			if( closed && seq == sequence + buffer.length + 1 ) {
-				buffer = SimpleByteChunk.EMPTY_BYTE_ARRAY;
+			if( closed && seq == sequence + length + 1 ) {
+				discard( length );
 				sequence = seq;
 				closeAcked = true;
 				return;
 			}
 			
-			if( seq > sequence + buffer.length ) {
-				System.err.println("Received unexpected ack of more data than has been buffered: "+seq+"/"+sequence);
+			if( TCPSequence.after( seq, sequence + length ) ) {
+				PacketLog.getDefault().log( PacketLog.WARN, "Received unexpected ack of more data than has been buffered: "+seq+"/"+sequence );
 				return;
 			}
 			
-			int trim = seq - sequence;
-			buffer = slice(buffer, trim);
+			discard( seq - sequence );
 			sequence = seq;
 		}
 	}
@@ -112,11 +214,77 @@ public class TCPSegmentHandler implements Sink<TCPSegment>
 		public final TCPDataHandler handler;
 		public final TCPOutputBuffer outBuf;
 		public int inputSequence;
+		/** What inputSequence started out as: their initial sequence number plus one */
+		final int firstInputSequence;
 		/**
 		 * True if we think the other end can accept
 		 * data and SYN/FIN flags in the same segment.
 		 */
 		public boolean combine;
+		/** Set when the other end's FIN has been received */
+		public boolean inputClosed;
+		/** Data received ahead of a gap, if there is any */
+		ReassemblyQueue reassembly;
+		
+		/** Most data we'll put in one segment: the smaller of our and their MSS */
+		int sendMss;
+		/** How much the other end's said it'll accept, beyond what it's acked */
+		int sendWindow;
+		/** Shift counts for their advertised window and ours; 0 if they didn't agree to window scaling */
+		int sendWindowScale, receiveWindowScale;
+		/** Sequence number of the next new thing (byte or FIN) to send */
+		int sendNext;
+		/** True if both ends do selective acknowledgements */
+		boolean sackEnabled;
+		/** What they've SACKed, if they do that */
+		SackScoreboard scoreboard;
+		/** End of the last hole retransmitted because it looked to be lost */
+		int highRetransmitted;
+		/** Decides how much we can have in flight */
+		CongestionControl congestion;
+		/** Duplicate acks in a row */
+		int dupAcks;
+		/** True while recovering from a loss spotted by duplicate acks or SACKs */
+		boolean inRecovery;
+		/**
+		 * sendNext as of the last loss; recovery's over once everything
+		 * before it's been acked, and until then more duplicate acks
+		 * don't start another one
+		 */
+		int recoveryPoint;
+		
+		/** Key of incoming segments, i.e. the inverse of rap */
+		final FlowKey key;
+		
+		SessionTimer retransmitTimer, keepaliveTimer, idleTimer, delayedAckTimer;
+		/** Full-sized segments of data received since we last sent an ack */
+		int segmentsUnacked;
+		/**
+		 * What counts as a full-sized segment from them.  Starts out
+		 * as sendMss, on the basis that paths are usually symmetric,
+		 * and goes up if anything bigger arrives.
+		 */
+		int receiveMss;
+		/** For sending pure acks; made the first time one's needed */
+		AckTemplate ackTemplate;
+		/** Round trip time and retransmission timeout */
+		final RTTEstimator rtt = new RTTEstimator( INITIAL_RTO_MILLIS, MIN_RTO_MILLIS, MAX_RTO_MILLIS, (int)TIMER_TICK_MILLIS );
+		/** True if both ends send timestamps (RFC 7323), which are used to measure the round trip time */
+		boolean timestampsEnabled;
+		/** Latest timestamp from the other end, to be echoed back */
+		int timestampRecent;
+		/**
+		 * Without timestamps, one segment at a time is timed: when it
+		 * was sent, and the sequence number whose acknowledgement will
+		 * show that it got there (RFC 6298 section 3)
+		 */
+		boolean rttTiming;
+		int rttTimingSequence;
+		long rttTimingStart;
+		/** Retransmissions since the last time the other end acked anything new */
+		int retransmits;
+		/** Keepalive probes since we last heard anything from the other end */
+		int keepaliveProbes;
 		
 		public TCPSession( SocketAddressPair outgoingAddressPair, TCPDataHandler handler, int inSeq, int outSeq, boolean combine ) {
 			assert( outgoingAddressPair != null );
@@ -126,129 +294,844 @@ public class TCPSegmentHandler implements Sink<TCPSegment>
 			this.handler = handler;
 			this.outBuf = new TCPOutputBuffer( outSeq );
 			this.inputSequence = inSeq;
+			this.firstInputSequence = inSeq;
 			this.combine = combine;
+			this.key = new FlowKey().set( SimpleSocketAddressPair.inverse(rap) );
+			this.sendNext = outBuf.sequence;
+			this.highRetransmitted = outBuf.sequence;
+			this.recoveryPoint = outBuf.sequence;
+		}
+		
+		/** Both directions closed and our FIN acknowledged; nothing left to do */
+		public boolean isFinished() {
+			return inputClosed && outBuf.closeAcked;
+		}
+		
+		/** True if we've sent anything (SYN, data, FIN) that hasn't been acknowledged */
+		public boolean hasUnackedOutput() {
+			return !outBuf.synAcked || outBuf.size() > 0 || (outBuf.closed && !outBuf.closeAcked);
+		}
+	}
+	
+	static final int RETRANSMIT_TIMER = 0;
+	static final int KEEPALIVE_TIMER  = 1;
+	static final int IDLE_TIMER       = 2;
+	static final int DELAYED_ACK_TIMER = 3;
+	
+	class SessionTimer extends TimerWheel.Timer {
+		final TCPSession sess;
+		final int kind;
+		
+		SessionTimer( TCPSession sess, int kind ) {
+			this.sess = sess;
+			this.kind = kind;
+		}
+		
+		protected void fire( long now ) throws Exception {
+			switch( kind ) {
+			case( RETRANSMIT_TIMER ): retransmit( sess ); break;
+			case( KEEPALIVE_TIMER  ): sendKeepalive( sess ); break;
+			case( IDLE_TIMER       ): expireIdleSession( sess ); break;
+			case( DELAYED_ACK_TIMER ): sendAck( sess ); break;
+			}
 		}
 	}
 	
-	final Sink<TCPSegment> outputSegmentSink;
+	/** Handles data for every session: echoes it right back */
+	protected final TCPDataHandler echoHandler = new TCPDataHandler() {
+		public void handleData(
+			byte[] data, int off, int len, boolean fin,
+			TCPDataWriter out
+		) {
+			if( log.isEnabled(PacketLog.DEBUG) ) {
+				log.log( PacketLog.DEBUG, "Got "+len+" bytes"+(fin ? " and a fin" : "")+"." );
+			}
+			// Echo it right back!
+			out.write(data, off, len, fin);
+		}
+	};
+	
+	/**
+	 * Outgoing segments are encoded into txBuffer and given to this
+	 * as complete IP packets.  txBuffer is reused for the next one as
+	 * soon as give returns.
+	 */
+	final RawPacketSink outputPacketSink;
+	final byte[] txBuffer;
+	/** Largest IP packet (headers and all) that we'll send */
+	public final int mtu;
+	/** MSS we advertise: as much as will fit in mtu */
+	final int localMss;
+	/** Options for the segment being sent */
+	final TCPOptions outOptions = new TCPOptions();
+	final byte[] optionsBuffer = new byte[40];
+	/** Options of the segment being handled */
+	final TCPOptions inOptions = new TCPOptions();
 	final Random rand = new Random();
+	public PacketLog log = PacketLog.getDefault();
+	public ResponderStats stats = ResponderStats.getDefault();
+	/** Congestion control for new handlers */
+	public static CongestionControl.Factory defaultCongestionControl = CongestionControl.CUBIC;
+	public CongestionControl.Factory congestionControl = defaultCongestionControl;
+	final TimerWheel timers;
+	/** Limit on memory used by all sessions' reassembly queues together */
+	public int maxReassemblyMemory = 16 * 1024 * 1024;
+	int reassemblyMemoryUsed;
+	/** Sessions whose SYN-ACK hasn't been acknowledged yet */
+	int halfOpenSessions;
+	/**
+	 * Once this many sessions are half-open, new SYNs are answered
+	 * with SYN cookies instead of sessions being set up for them
+	 */
+	public int synCookieThreshold = 1024;
+	final SynCookies synCookies = new SynCookies( new SecureRandom() );
+	/** When a SYN cookie was last sent, or -1 if none ever has been */
+	long lastSynCookieTime = -1;
+	/** For looking up cookies without allocating anything */
+	final FlowKey cookieKey = new FlowKey();
+	
+	public TCPSegmentHandler( RawPacketSink outputPacketSink, int mtu, long startTime ) {
+		this.outputPacketSink = outputPacketSink;
+		this.mtu = mtu;
+		this.localMss = mtu - IP6Packet.IP6_HEADER_SIZE - TCPSegment.TCP_HEADER_SIZE;
+		this.txBuffer = new byte[mtu];
+		this.timers = new TimerWheel( startTime, TIMER_TICK_MILLIS, TIMER_SLOTS );
+	}
+	
+	public TCPSegmentHandler( RawPacketSink outputPacketSink, int mtu ) {
+		this( outputPacketSink, mtu, System.currentTimeMillis() );
+	}
+	
+	public TCPSegmentHandler( RawPacketSink outputPacketSink ) {
+		this( outputPacketSink, DEFAULT_MTU );
+	}
+	
+	/**
+	 * For callers that want TCPSegment objects.
+	 * Each one gets its own copy of the packet, so this is slower.
+	 */
+	public TCPSegmentHandler( final Sink<TCPSegment> outputSegmentSink ) {
+		this( new RawPacketSink() {
+			public void give( byte[] buf, int off, int size ) throws Exception {
+				byte[] copy = new byte[size];
+				System.arraycopy( buf, off, copy, 0, size );
+				outputSegmentSink.give( TCPSegment.parse( IPPacket.parse(copy, 0, size) ) );
+			}
+		});
+	}
+	
+	/**
+	 * How much more data we're prepared to receive: the receive
+	 * buffer less whatever we're still holding onto.
+	 * Since that's data we received and our handler's holding
+	 * it until its output's been acked, the right edge of the
+	 * window only moves forward.
+	 */
+	protected int receiveWindow( TCPSession sess ) {
+		return Math.max( 0, RECEIVE_BUFFER_SIZE - sess.outBuf.size() );
+	}
+	
+	/**
+	 * Describe what's in the reassembly queue as SACK blocks,
+	 * starting with the one that includes the most recently received
+	 * data, then the rest in order (RFC 2018 section 4).
+	 */
+	protected void addSackBlocks( ReassemblyQueue q, TCPOptions opts ) {
+		for( ReassemblyQueue.Block b = q.first; b != null; b = b.next ) {
+			int left = b.seq, right = b.end();
+			// Blocks can be adjacent; report them as one
+			while( b.next != null && b.next.seq == right ) {
+				b = b.next;
+				right = b.end();
+			}
+			if( TCPSequence.afterOrAt( q.lastAddedSequence, left ) && TCPSequence.before( q.lastAddedSequence, right ) ) {
+				// Move everything along to put this one first
+				int n = Math.min( opts.sackBlockCount, opts.maxSackBlocks() - 1 );
+				System.arraycopy( opts.sackBlocks, 0, opts.sackBlocks, 2, n*2 );
+				opts.sackBlocks[0] = left;
+				opts.sackBlocks[1] = right;
+				opts.sackBlockCount = n + 1;
+			} else {
+				opts.addSackBlock( left, right );
+			}
+		}
+	}
+	
+	/**
+	 * Write the options for an outgoing segment into optionsBuffer.
+	 * @return the size of the options
+	 */
+	protected int encodeOptions( TCPSession sess, int flags ) {
+		outOptions.clear();
+		if( sess.timestampsEnabled ) {
+			// These go first so that SACK blocks know how much room is left
+			outOptions.hasTimestamps = true;
+			outOptions.timestampValue = (int)timers.getCurrentTime();
+			outOptions.timestampEcho = sess.timestampRecent;
+		}
+		if( (flags & TCPFlags.SYN) != 0 ) {
+			outOptions.mss = localMss;
+			// These are only offered if they offered them first, since we never send the initial SYN
+			if( sess.receiveWindowScale > 0 ) outOptions.windowScale = sess.receiveWindowScale;
+			outOptions.sackPermitted = sess.sackEnabled;
+		} else if( sess.sackEnabled && sess.reassembly != null ) {
+			addSackBlocks( sess.reassembly, outOptions );
+		} else if( !sess.timestampsEnabled ) {
+			return 0;
+		}
+		return outOptions.encode( optionsBuffer, 0 );
+	}
+	
+	/** Most data we can put in a segment with the given flags */
+	protected int maxPayloadSize( TCPSession sess, int flags ) {
+		return sess.sendMss - encodeOptions( sess, flags );
+	}
+	
+	protected void sendSegment( TCPSession sess, int seq, int ack, int flags ) throws Exception {
+		sendSegment( sess, seq, ack, flags, null, 0, 0 );
+	}
+	
+	/** Value for the window field of a segment with the given flags */
+	protected int windowField( TCPSession sess, int flags ) {
+		// The window in a SYN is never scaled
+		return (flags & TCPFlags.SYN) != 0 ?
+			Math.min( receiveWindow(sess), 0xFFFF ) :
+			Math.min( receiveWindow(sess) >> sess.receiveWindowScale, 0xFFFF );
+	}
+	
+	/** Whatever ack was being held back is going along with a segment being sent */
+	protected void ackSent( TCPSession sess ) {
+		sess.segmentsUnacked = 0;
+		timers.cancel( sess.delayedAckTimer );
+	}
+	
+	/** Send a segment carrying len bytes of buf's data, starting from its from'th unacknowledged byte */
+	protected void sendSegment( TCPSession sess, int seq, int ack, int flags, TCPOutputBuffer buf, int from, int len ) throws Exception {
+		int optionsSize = encodeOptions( sess, flags );
+		if( len > 0 ) buf.copyTo( from, txBuffer, TCPSegment.dataOffsetV6(optionsSize), len );
+		int size = TCPSegment.encodeV6( txBuffer, 0, sess.rap, seq, ack, flags, windowField(sess, flags), optionsBuffer, 0, optionsSize, null, 0, len );
+		if( (flags & TCPFlags.ACK) != 0 ) ackSent( sess );
+		outputPacketSink.give( txBuffer, 0, size );
+	}
+	
+	/** Send a segment with no data or SYN/FIN, to tell them what we've received */
+	protected void sendAck( TCPSession sess ) throws Exception {
+		if( sess.sackEnabled && sess.reassembly != null ) {
+			// SACK blocks come and go, so there's no template for them
+			sendSegment( sess, sess.sendNext, sess.inputSequence, TCPFlags.ACK );
+			return;
+		}
+		if( sess.ackTemplate == null ) sess.ackTemplate = new AckTemplate( sess.rap, sess.timestampsEnabled );
+		AckTemplate t = sess.ackTemplate;
+		t.update( sess.sendNext, sess.inputSequence, windowField(sess, TCPFlags.ACK), (int)timers.getCurrentTime(), sess.timestampRecent );
+		ackSent( sess );
+		outputPacketSink.give( t.packet, 0, t.size );
+	}
+	
+	/** Sessions by the FlowKey of their incoming segments */
+	final FlowTable<TCPSession> connections = new FlowTable<TCPSession>();
+	
+	protected void removeSession( TCPSession sess ) {
+		if( connections.remove( sess.key ) != null ) {
+			stats.activeTcpSessions.decrement();
+			if( !sess.outBuf.synAcked ) --halfOpenSessions;
+			if( log.isEnabled(PacketLog.DEBUG) ) {
+				log.log( PacketLog.DEBUG, "TCP session "+sess.key+" done; srtt="+sess.rtt.getSmoothedRtt()+"ms rttvar="+
+					sess.rtt.getRttVariation()+"ms rto="+sess.rtt.getRto()+"ms "+sess.congestion );
+			}
+		}
+		timers.cancel( sess.retransmitTimer );
+		timers.cancel( sess.keepaliveTimer );
+		timers.cancel( sess.idleTimer );
+		timers.cancel( sess.delayedAckTimer );
+		releaseReassemblyQueue( sess );
+	}
+	
+	protected void releaseReassemblyQueue( TCPSession sess ) {
+		if( sess.reassembly == null ) return;
+		reassemblyMemoryUsed -= sess.reassembly.clear();
+		sess.reassembly = null;
+	}
+	
+	public void advanceTime( long now ) {
+		timers.advanceTime( now );
+	}
+	
+	public long getTimeUntilNextTimer() {
+		return timers.getTimeUntilNextTick();
+	}
+	
+	protected void retransmit( TCPSession sess ) throws Exception {
+		if( !sess.hasUnackedOutput() ) return;
+		if( sess.retransmits == MAX_RETRANSMITS ) {
+			if( log.isEnabled(PacketLog.INFO) ) {
+				log.log( PacketLog.INFO, "Giving up on TCP session "+sess.key+" after "+sess.retransmits+" retransmissions" );
+			}
+			stats.tcpSessionTimeouts.increment();
+			removeSession( sess );
+			return;
+		}
+		// Only the first timeout says anything new about how congested things are
+		if( sess.retransmits == 0 ) {
+			sess.congestion.onRetransmitTimeout( sess.sendNext - sess.outBuf.sequence, timers.getCurrentTime() );
+		} else {
+			sess.congestion.cwnd = sess.sendMss;
+		}
+		++sess.retransmits;
+		sess.rtt.backOff();
+		// Karn's algorithm: acks for what's about to be resent can't be timed
+		sess.rttTiming = false;
+		// If they've closed their window, this probes it with a single byte
+		if( sess.sendWindow == 0 ) sess.sendWindow = 1;
+		// Duplicate acks for what was sent before now don't mean anything
+		sess.inRecovery = false;
+		sess.dupAcks = 0;
+		sess.recoveryPoint = sess.sendNext;
+		// Start again from the first unacknowledged byte.  The other end
+		// is allowed to have thrown away what it SACKed (RFC 2018 section 8).
+		sess.sendNext = sess.outBuf.sequence;
+		sess.highRetransmitted = sess.outBuf.sequence;
+		if( sess.scoreboard != null ) sess.scoreboard.clear();
+		// Everything unacknowledged goes again from the start
+		sendSomeOutgoingData( sess );
+		stats.tcpRetransmits.increment();
+		timers.schedule( sess.retransmitTimer, sess.rtt.getRto() );
+	}
+	
+	protected void sendKeepalive( TCPSession sess ) throws Exception {
+		if( sess.keepaliveProbes == KEEPALIVE_PROBES ) {
+			if( log.isEnabled(PacketLog.INFO) ) {
+				log.log( PacketLog.INFO, "TCP session "+sess.key+" didn't answer "+sess.keepaliveProbes+" keepalive probes" );
+			}
+			stats.tcpSessionTimeouts.increment();
+			removeSession( sess );
+			return;
+		}
+		// While there's unacked output, the retransmit timer does this job
+		if( !sess.hasUnackedOutput() ) {
+			// An already-acknowledged sequence number, which the other end should ack
+			sendSegment( sess, sess.outBuf.sequence - 1, sess.inputSequence, TCPFlags.ACK );
+			++sess.keepaliveProbes;
+		}
+		timers.schedule( sess.keepaliveTimer, KEEPALIVE_INTERVAL_MILLIS );
+	}
 	
-	public TCPSegmentHandler( Sink<TCPSegment> outputSegmentSink ) {
-		this.outputSegmentSink = outputSegmentSink;
+	/**
+	 * A SYN for a session that already exists.  If it's their SYN again
+	 * (our SYN-ACK must have gone missing), send the SYN-ACK again.
+	 * Anything else gets a challenge ACK (RFC 5961 section 4) and the
+	 * session's left alone, since the SYN could be from anyone who
+	 * guessed the ports.  If they really have started over, they'll
+	 * answer the ack with an RST, which will end it.
+	 */
+	protected void handleSynForExistingSession( TCPSession sess, TCPDecoder inSeg ) throws Exception {
+		if( !sess.outBuf.synAcked && inSeg.getSequenceNumber() + 1 == sess.firstInputSequence ) {
+			// Karn's algorithm again: can't tell which one an ack would be for
+			sess.rttTiming = false;
+			if( sess.combine ) {
+				sendData( sess, true, sess.outBuf.sequence, true );
+			} else {
+				sendSegment( sess, sess.outBuf.sequence - 1, sess.inputSequence, TCPFlags.SYN | TCPFlags.ACK );
+			}
+		} else {
+			sendAck( sess );
+		}
 	}
 	
-	TCPSession sess;
+	protected void expireIdleSession( TCPSession sess ) throws Exception {
+		if( log.isEnabled(PacketLog.INFO) ) {
+			log.log( PacketLog.INFO, "Closing idle TCP session "+sess.key );
+		}
+		sendSegment( sess, sess.sendNext, sess.inputSequence, TCPFlags.RST | TCPFlags.ACK );
+		stats.tcpSessionTimeouts.increment();
+		removeSession( sess );
+	}
 	
-	protected boolean sendData( SocketAddressPair sap, TCPOutputBuffer buf, boolean includeSyn, boolean includeData, boolean includeFinIfReached, int ackSeq )
+	/**
+	 * Send a segment of data starting at seq (and/or a SYN before it and/or a FIN
+	 * after it), as much as the MSS and their window allow, and stopping short
+	 * of anything they've SACKed.
+	 * @return true if anything was sent
+	 */
+	protected boolean sendData( TCPSession sess, boolean includeSyn, int seq, boolean includeFinIfReached )
 		throws Exception
 	{
-		// This function doesn't currently handle the send-fin-but-no-data case, so:
-		assert( !includeFinIfReached || includeData );
-		
-		int payloadSize = includeData ? Math.min( buf.buffer.length, 1024 ) : 0;
-		boolean includeFin = includeFinIfReached && payloadSize == buf.buffer.length && buf.closed && !buf.closeAcked;
+		TCPOutputBuffer buf = sess.outBuf;
+		int from = seq - buf.sequence;
+		int end = buf.size();
+		if( sess.scoreboard != null ) end = sess.scoreboard.nextSackedAfter( seq, buf.sequence + end ) - buf.sequence;
+		int payloadSize = Math.max( 0, Math.min( end - from, Math.min(
+			maxPayloadSize( sess, includeSyn ? TCPFlags.SYN : 0 ),
+			sess.sendWindow - from ) ) );
+		boolean includeFin = includeFinIfReached && from + payloadSize == buf.size() && buf.closed && !buf.closeAcked;
 		
 		if( !includeSyn && payloadSize == 0 && !includeFin ) {
 			// then send nothing!
 			return false;
 		}
 		
-		outputSegmentSink.give( TCPSegment.create(
-			sap,
-			includeSyn ? buf.sequence - 1 : buf.sequence,
-			ackSeq,
+		sendSegment(
+			sess,
+			includeSyn ? buf.sequence - 1 : seq,
+			sess.inputSequence,
 			(includeSyn ? TCPFlags.SYN : 0) | (includeFin ? TCPFlags.FIN : 0 ) | TCPFlags.ACK,
-			WINDOW_SIZE,
-			buf.buffer, 0, payloadSize
-		));
+			buf, from, payloadSize
+		);
+		int sentEnd = seq + payloadSize + (includeFin ? 1 : 0);
+		if( TCPSequence.after( sentEnd, sess.sendNext ) ) {
+			sess.sendNext = sentEnd;
+			// Time it if there's nothing else being timed and this is its first time out
+			// (anything before recoveryPoint may have been sent before a timeout)
+			if( !sess.timestampsEnabled && !sess.rttTiming && TCPSequence.afterOrAt( seq, sess.recoveryPoint ) ) {
+				startRttTiming( sess, sentEnd );
+			}
+		} else {
+			// Filling a hole
+			sess.highRetransmitted = TCPSequence.max( sess.highRetransmitted, sentEnd );
+			sess.rttTiming = false;
+		}
 		return true;
 	}
 	
+	/**
+	 * @return the start of a hole in what they've received that's
+	 *   probably lost and that we haven't already resent, or sendNext
+	 *   if there isn't one.  The first unacknowledged byte counts as lost
+	 *   when recovery starts and, if they're not sending SACKs, whenever
+	 *   there's a partial ack during recovery (RFC 6582).  Otherwise it takes
+	 *   SACKs to show that something is.
+	 */
+	protected int nextLostSequence( TCPSession sess ) {
+		SackScoreboard sb = sess.scoreboard;
+		int una = sess.outBuf.sequence;
+		int hole = TCPSequence.max( una, sess.highRetransmitted );
+		if( sb != null ) hole = sb.skipSacked( hole );
+		if( !TCPSequence.before( hole, sess.sendNext ) ) return sess.sendNext;
+		if( sess.inRecovery && hole == una && (sb == null || sess.highRetransmitted == una) ) return hole;
+		if( sb != null && sb.sackedBytesAfter( hole ) > (DUP_THRESHOLD - 1) * sess.sendMss ) return hole;
+		return sess.sendNext;
+	}
+	
+	/**
+	 * Estimate of how much of what we've sent is still in the network
+	 * (RFC 6675's 'pipe', roughly): everything unacknowledged, less
+	 * whatever's been SACKed or, without SACKs, a segment for each
+	 * duplicate ack during recovery.
+	 */
+	protected int pipe( TCPSession sess ) {
+		int una = sess.outBuf.sequence;
+		int pipe = sess.sendNext - una;
+		if( sess.scoreboard != null ) {
+			pipe -= sess.scoreboard.sackedBytesAfter( una );
+		} else if( sess.inRecovery ) {
+			pipe -= sess.dupAcks * sess.sendMss;
+		}
+		return Math.max( 0, pipe );
+	}
+	
+	/** Loss spotted by duplicate acks or SACKs; resend what's missing and slow down */
+	protected void enterRecovery( TCPSession sess ) {
+		int una = sess.outBuf.sequence;
+		sess.congestion.onCongestion( sess.sendNext - una, timers.getCurrentTime() );
+		sess.inRecovery = true;
+		sess.recoveryPoint = sess.sendNext;
+		sess.highRetransmitted = una;
+		stats.tcpFastRetransmits.increment();
+	}
+	
 	protected boolean sendSomeOutgoingData( TCPSession sess ) throws Exception {
-		SocketAddressPair rap = sess.rap;
+		TCPOutputBuffer buf = sess.outBuf;
+		if( sess.combine && !buf.synAcked ) {
+			// SYN, data, and FIN all together, from the start
+			return sendData( sess, true, buf.sequence, true );
+		}
+		
 		boolean anythingSent = false;
-		if( sess.combine ) {
-			anythingSent = sendData( rap, sess.outBuf, !sess.outBuf.synAcked, true, true, sess.inputSequence ); 
-		} else {
-			if( !sess.outBuf.synAcked ) {
-				anythingSent |= sendData( rap, sess.outBuf, true, false, false, sess.inputSequence );
-			}
-			if( sess.outBuf.buffer.length > 0 ) {
-				anythingSent |= sendData( rap, sess.outBuf, false, true, false, sess.inputSequence );
-			}
-			if( sess.outBuf.buffer.length <= 1024 && sess.outBuf.closed && !sess.outBuf.closeAcked ) {
-				outputSegmentSink.give( TCPSegment.create(
-					rap,
-					sess.outBuf.sequence + sess.outBuf.buffer.length,
-					sess.inputSequence,
-					TCPFlags.FIN | TCPFlags.ACK,
-					WINDOW_SIZE,
-					SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0
-				));
-				anythingSent = true;
-			}
+		if( !buf.synAcked ) {
+			sendSegment( sess, buf.sequence - 1, sess.inputSequence, TCPFlags.SYN | TCPFlags.ACK );
+			if( !sess.timestampsEnabled && sess.retransmits == 0 ) startRttTiming( sess, buf.sequence );
+			anythingSent = true;
+		}
+		// Fill holes that look to have been lost, then send new stuff,
+		// as much as the congestion window allows
+		for( int i=0; i<MAX_BURST_SEGMENTS; ++i ) {
+			int seq = nextLostSequence( sess );
+			boolean fillingHole = seq != sess.sendNext;
+			// Everything's waiting on the first unacked byte, so that goes regardless
+			if( !(fillingHole && seq == buf.sequence) && pipe( sess ) >= sess.congestion.cwnd ) break;
+			if( !sendData( sess, false, seq, sess.combine ) ) break;
+			if( fillingHole ) stats.tcpRetransmits.increment();
+			anythingSent = true;
+		}
+		if(
+			!sess.combine && buf.closed && !buf.closeAcked &&
+			sess.sendNext == buf.sequence + buf.size()
+		) {
+			// All the data's been sent; the FIN goes separately
+			sendSegment( sess, sess.sendNext, sess.inputSequence, TCPFlags.FIN | TCPFlags.ACK );
+			++sess.sendNext;
+			anythingSent = true;
 		}
 		return anythingSent;
 	}
 	
+	protected void startRttTiming( TCPSession sess, int ackSequence ) {
+		sess.rttTiming = true;
+		sess.rttTimingSequence = ackSequence;
+		sess.rttTimingStart = timers.getCurrentTime();
+	}
+	
+	/**
+	 * Measure the round trip time, when the segment being handled
+	 * (whose options are in inOptions) has acked something new.
+	 * With timestamps, that's from when whatever they're echoing was sent
+	 * (RFC 7323 section 4.1); otherwise it's from the segment being timed.
+	 */
+	protected void sampleRoundTripTime( TCPSession sess, long now ) {
+		int sample;
+		if( sess.timestampsEnabled ) {
+			if( !inOptions.hasTimestamps ) return;
+			sample = (int)now - inOptions.timestampEcho;
+		} else if( sess.rttTiming && TCPSequence.afterOrAt( sess.outBuf.sequence, sess.rttTimingSequence ) ) {
+			sample = (int)(now - sess.rttTimingStart);
+			sess.rttTiming = false;
+		} else {
+			return;
+		}
+		// Timestamps echoed from who knows where can make no sense
+		if( sample < 0 ) return;
+		sess.rtt.addSample( sample );
+		// The histogram's in nanoseconds, like the handling latency one
+		stats.tcpRoundTripTime.record( sample * 1000000L );
+	}
+	
+	/** Note whatever's SACKed by the segment being handled (whose options are in inOptions) */
+	protected void updateScoreboard( TCPSession sess ) {
+		int una = sess.outBuf.sequence;
+		for( int i=0; i<inOptions.sackBlockCount; ++i ) {
+			int left = inOptions.sackBlocks[i*2], right = inOptions.sackBlocks[i*2+1];
+			// Ignore anything that's not about data that's been sent and not acked
+			if( TCPSequence.beforeOrAt( left, una ) || TCPSequence.after( right, sess.sendNext ) ) continue;
+			if( sess.scoreboard == null ) sess.scoreboard = new SackScoreboard();
+			sess.scoreboard.add( left, right );
+		}
+		if( sess.scoreboard != null ) sess.scoreboard.discardBefore( una );
+	}
+	
+	/** Pass in-order data (and/or FIN) to the session's handler */
+	protected void deliver( TCPSession sess, byte[] buf, int off, int len, boolean fin ) {
+		if( len == 0 && !fin ) return;
+		sess.handler.handleData( buf, off, len, fin, sess.outBuf );
+		sess.inputSequence += len;
+		if( fin ) {
+			sess.inputSequence += 1;
+			sess.inputClosed = true;
+		}
+	}
+	
+	/** Deliver whatever queued data the gap before it being filled has made in-order */
+	protected void deliverQueued( TCPSession sess ) {
+		ReassemblyQueue q = sess.reassembly;
+		if( q == null ) return;
+		int memoryUsedBefore = q.memoryUsed;
+		while( q.first != null && !sess.inputClosed && TCPSequence.beforeOrAt( q.first.seq, sess.inputSequence ) ) {
+			ReassemblyQueue.Block b = q.removeFirst();
+			// Some of it may have come in again in-order
+			int skip = sess.inputSequence - b.seq;
+			if( skip < b.data.length ) deliver( sess, b.data, skip, b.data.length - skip, false );
+		}
+		reassemblyMemoryUsed -= memoryUsedBefore - q.memoryUsed;
+		if( q.finQueued && !sess.inputClosed && q.finSequence == sess.inputSequence ) {
+			deliver( sess, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0, true );
+		}
+		if( sess.inputClosed || q.isEmpty() ) releaseReassemblyQueue( sess );
+	}
+	
+	protected void queueOutOfOrder( TCPSession sess, int seq, byte[] buf, int off, int len, boolean fin ) {
+		if( sess.reassembly == null ) sess.reassembly = new ReassemblyQueue();
+		ReassemblyQueue q = sess.reassembly;
+		int limit = Math.min( MAX_REASSEMBLY_MEMORY_PER_SESSION - q.memoryUsed, maxReassemblyMemory - reassemblyMemoryUsed );
+		int added = q.add( seq, buf, off, len, fin, limit );
+		if( added < 0 ) {
+			// It'll have to be retransmitted
+			stats.tcpReassemblyOverflows.increment();
+			if( q.isEmpty() ) sess.reassembly = null;
+			return;
+		}
+		reassemblyMemoryUsed += added;
+	}
+	
+	/**
+	 * Set up a session for the connection that inSeg's part of.
+	 * mss, windowScale (-1 for none) and the rest are what they asked for in their SYN.
+	 */
+	protected TCPSession createSession(
+		TCPDecoder inSeg, int theirIsn, int ourIsn, boolean combine,
+		int mss, int windowScale, boolean sackPermitted, boolean timestamps
+	) {
+		// Copy the addresses, since inSeg's buffer may get reused
+		SocketAddressPair rap = SimpleSocketAddressPair.copyOf( SimpleSocketAddressPair.inverse(inSeg) );
+		TCPSession sess = new TCPSession( rap, echoHandler, theirIsn+1, ourIsn, combine );
+		sess.sendMss = Math.min( localMss, mss > 0 ? mss : DEFAULT_IP6_MSS );
+		sess.receiveMss = sess.sendMss;
+		if( windowScale >= 0 ) {
+			sess.sendWindowScale = windowScale;
+			sess.receiveWindowScale = RECEIVE_WINDOW_SCALE;
+		}
+		sess.sackEnabled = sackPermitted;
+		sess.timestampsEnabled = timestamps;
+		sess.timestampRecent = inOptions.timestampValue;
+		sess.congestion = congestionControl.create( sess.sendMss, timers.getCurrentTime() );
+		sess.retransmitTimer = new SessionTimer( sess, RETRANSMIT_TIMER );
+		sess.keepaliveTimer = new SessionTimer( sess, KEEPALIVE_TIMER );
+		sess.idleTimer = new SessionTimer( sess, IDLE_TIMER );
+		sess.delayedAckTimer = new SessionTimer( sess, DELAYED_ACK_TIMER );
+		connections.put( sess.key, sess );
+		stats.activeTcpSessions.increment();
+		++halfOpenSessions;
+		return sess;
+	}
+	
+	/**
+	 * Answer a SYN without keeping anything, using an initial sequence
+	 * number (and, if they do timestamps, a timestamp) that holds what we
+	 * need to know about it, which the ACK that completes the handshake
+	 * will bring back.  Without timestamps, window scaling and SACK can't
+	 * be offered since there's nowhere to remember that they were agreed to.
+	 * Any data in the SYN is dropped; they'll send it again.
+	 */
+	protected void sendSynCookie( TCPDecoder inSeg ) throws Exception {
+		long now = timers.getCurrentTime();
+		byte[] buf = inSeg.getBuffer();
+		int sourceOffset = inSeg.getSourceAddressOffset(), destOffset = inSeg.getDestinationAddressOffset();
+		cookieKey.set( buf, sourceOffset, inSeg.getSourcePort(), destOffset, inSeg.getDestinationPort() );
+		int isn = synCookies.make( cookieKey, inSeg.getSequenceNumber(), inOptions.mss > 0 ? inOptions.mss : DEFAULT_IP6_MSS, now );
+		
+		outOptions.clear();
+		outOptions.mss = localMss;
+		if( inOptions.hasTimestamps ) {
+			if( inOptions.windowScale >= 0 ) outOptions.windowScale = RECEIVE_WINDOW_SCALE;
+			outOptions.sackPermitted = inOptions.sackPermitted;
+			outOptions.hasTimestamps = true;
+			// Their window scale (or 0xF for none) and whether they do SACK go in the bottom bits
+			outOptions.timestampValue = ((int)now & ~0x1F) |
+				(inOptions.sackPermitted ? 0x10 : 0) |
+				(inOptions.windowScale >= 0 ? inOptions.windowScale : 0xF);
+			outOptions.timestampEcho = inOptions.timestampValue;
+		}
+		int optionsSize = outOptions.encode( optionsBuffer, 0 );
+		int size = TCPSegment.encodeV6( txBuffer, 0,
+			buf, destOffset, inSeg.getDestinationPort(),
+			buf, sourceOffset, inSeg.getSourcePort(),
+			isn, inSeg.getSequenceNumber() + 1, TCPFlags.SYN | TCPFlags.ACK, Math.min( RECEIVE_BUFFER_SIZE, 0xFFFF ),
+			optionsBuffer, 0, optionsSize, null, 0, 0 );
+		outputPacketSink.give( txBuffer, 0, size );
+		lastSynCookieTime = now;
+		stats.tcpSynCookiesSent.increment();
+	}
+	
+	/**
+	 * If inSeg's the ACK that completes a handshake we sent a SYN cookie
+	 * for, set up the session that wasn't when the SYN came in.
+	 * @return the new session, or null if it isn't
+	 */
+	protected TCPSession acceptSynCookie( TCPDecoder inSeg ) {
+		long now = timers.getCurrentTime();
+		// Don't bother checking unless there could be any cookies out there
+		if( lastSynCookieTime < 0 || now - lastSynCookieTime > SynCookies.LIFETIME_MILLIS ) return null;
+		
+		cookieKey.set( inSeg.getBuffer(),
+			inSeg.getSourceAddressOffset(), inSeg.getSourcePort(),
+			inSeg.getDestinationAddressOffset(), inSeg.getDestinationPort() );
+		int theirIsn = inSeg.getSequenceNumber() - 1;
+		int ourIsn = inSeg.getAckNumber() - 1;
+		int mss = synCookies.check( cookieKey, theirIsn, ourIsn, now );
+		if( mss < 0 ) {
+			stats.tcpSynCookiesRejected.increment();
+			return null;
+		}
+		int windowScale = -1;
+		boolean sackPermitted = false;
+		if( inOptions.hasTimestamps ) {
+			int bits = inOptions.timestampEcho & 0x1F;
+			sackPermitted = (bits & 0x10) != 0;
+			if( (bits & 0xF) != 0xF ) windowScale = bits & 0xF;
+		}
+		stats.tcpSynCookiesAccepted.increment();
+		return createSession( inSeg, theirIsn, ourIsn, false, mss, windowScale, sackPermitted, inOptions.hasTimestamps );
+	}
+	
+	final PacketContext segContext = new PacketContext();
+	
+	/**
+	 * Handle a segment given as a TCPSegment object.
+	 * handle(PacketContext) is the more direct way.
+	 */
 	public void give( TCPSegment inSeg ) throws Exception {
-		int outSeq;
+		IPPacket p = inSeg.ipPacket;
+		if( !segContext.decode( p.getBuffer(), p.getOffset(), p.getSize() ) ) return;
+		if( segContext.getUpperProtocol() != TCPSegment.TCP_PROTOCOL_NUMBER ) return;
+		handle( segContext );
+	}
+	
+	/**
+	 * Handle an incoming packet that ctx has decoded as a well-formed TCP segment.
+	 * ctx refers to the packet's buffer, which may be reused once this returns.
+	 */
+	public void handle( PacketContext ctx ) throws Exception {
+		TCPDecoder inSeg = ctx.tcp;
+		int inSeq = inSeg.getSequenceNumber();
+		TCPSession sess = connections.get( inSeg.getBuffer(),
+			inSeg.getSourceAddressOffset(), inSeg.getSourcePort(),
+			inSeg.getDestinationAddressOffset(), inSeg.getDestinationPort() );
+		if( inSeg.isRst() ) {
+			if( sess != null ) removeSession( sess );
+			return;
+		}
+		if( inSeg.getOptionsSize() > 0 ) {
+			inOptions.parse( inSeg.getBuffer(), inSeg.getOptionsOffset(), inSeg.getOptionsSize() );
+		} else {
+			inOptions.clear();
+		}
 		if( inSeg.isSyn() ) {
+			if( sess != null ) {
+				handleSynForExistingSession( sess, inSeg );
+				return;
+			}
+			if( halfOpenSessions >= synCookieThreshold ) {
+				// Possibly a SYN flood; don't commit anything to it
+				sendSynCookie( inSeg );
+				return;
+			}
 			// Start a new session!
-			outSeq = rand.nextInt();
-			
-			TCPDataHandler handler = new TCPDataHandler() {
-				public void handleData(
-					byte[] data, int off, int len, boolean fin,
-					TCPDataWriter out
-				) {
-					System.err.println( "Got "+len+" bytes"+(fin ? " and a fin" : "")+".");
-					// Echo it right back!
-					out.write(data, off, len, fin);
-				}
-			};
-			
-			sess = new TCPSession( inSeg.getInverseAddressPair(), handler, inSeg.sequenceNumber+1, outSeq, inSeg.dataSize > 0 );
+			sess = createSession( inSeg, inSeq, rand.nextInt(), inSeg.hasData(),
+				inOptions.mss, inOptions.windowScale, inOptions.sackPermitted, inOptions.hasTimestamps );
+			sess.sendWindow = inSeg.getWindowSize();
 		} else if( sess == null ) {
-			// Invalid!
-			return;
-		} else if( inSeg.sequenceNumber < sess.inputSequence ) {
-			// Old data; ignore!
-			// Actually it could still be valid and we'd need to accept
-			// this if inSeg.sequenceNumber + inSeg.getSequenceDelta() < sess.inputSequence
+			// Unless it completes a handshake we sent a SYN cookie for, it's invalid!
+			if( !inSeg.isAck() || (sess = acceptSynCookie( inSeg )) == null ) return;
+		}
+		
+		// Any data starts after the SYN, if there is one
+		int dataSeq = inSeg.isSyn() ? inSeq + 1 : inSeq;
+		int dataSize = sess.inputClosed ? 0 : inSeg.getDataSize();
+		boolean fin = inSeg.isFin() && !sess.inputClosed;
+		// How much of it we've already received
+		int overlap = sess.inputSequence - dataSeq;
+		if(
+			sess.timestampsEnabled && inOptions.hasTimestamps && overlap >= 0 &&
+			TCPSequence.afterOrAt( inOptions.timestampValue, sess.timestampRecent )
+		) {
+			// The latest timestamp from anything that's not after a gap (RFC 7323 section 4.3)
+			sess.timestampRecent = inOptions.timestampValue;
+		}
+		
+		if( overlap > 0 && overlap >= dataSize + (fin ? 1 : 0) ) {
+			// Nothing new; probably retransmitted because our ack got lost,
+			// or a keepalive probe.  Either way, tell them where we're at.
+			sess.keepaliveProbes = 0;
+			timers.schedule( sess.keepaliveTimer, KEEPALIVE_IDLE_MILLIS );
+			sendAck( sess );
 			return;
-		} else if( inSeg.sequenceNumber > sess.inputSequence ) {
-			// Too new; ignore?
+		}
+		int window = receiveWindow( sess );
+		if( overlap < 0 && -overlap >= window ) {
+			// Way beyond anything we said we'd accept
+			sendAck( sess );
 			return;
-		} else {
-			outSeq = sess.outBuf.sequence;
 		}
 		
-		sess.handler.handleData( inSeg.getBuffer(), inSeg.dataOffset, inSeg.dataSize, inSeg.isFin(), sess.outBuf );
-		sess.inputSequence = inSeg.sequenceNumber + inSeg.getSequenceDelta();
+		boolean ackRequired = inSeg.isSyn() || dataSize > 0 || fin;
+		// Acks for plain in-order data can wait a bit; the rest,
+		// including duplicate acks and acks of data that fills a gap,
+		// which the other end needs for fast retransmit and recovery,
+		// can't (RFC 5681 section 4.2)
+		boolean ackNow = inSeg.isSyn() || fin;
+		boolean newData = false;
+		if( overlap < 0 ) {
+			// There's a gap before this; hold onto it until that's filled.
+			// The ack we send will be a duplicate, hinting that something's missing.
+			if( dataSize > 0 || fin ) {
+				ackNow = true;
+				stats.tcpOutOfOrderSegments.increment();
+				if( dataSize - overlap > window ) {
+					dataSize = window + overlap;
+					fin = false;
+				}
+				queueOutOfOrder( sess, dataSeq, inSeg.getBuffer(), inSeg.getDataOffset(), dataSize, fin );
+			}
+		} else {
+			if( sess.reassembly != null && dataSize > overlap ) ackNow = true;
+			if( dataSize > overlap ) {
+				newData = true;
+				// Only every second full-sized segment has to be acked right away;
+				// runs of small ones wait for the timer (RFC 5681 section 4.2)
+				int size = dataSize - overlap;
+				if( size > sess.receiveMss ) sess.receiveMss = size;
+				if( size >= sess.receiveMss ) ++sess.segmentsUnacked;
+			}
+			deliver( sess, inSeg.getBuffer(), inSeg.getDataOffset() + overlap, dataSize - overlap, fin );
+			deliverQueued( sess );
+		}
 		
-		if( inSeg.isAck() ) sess.outBuf.ack( inSeg.ackNumber );
+		int oldOutSeq = sess.outBuf.sequence;
+		boolean wasSynAcked = sess.outBuf.synAcked;
+		int oldSendWindow = sess.sendWindow;
+		if( inSeg.isAck() && TCPSequence.afterOrAt( inSeg.getAckNumber(), oldOutSeq ) ) {
+			sess.outBuf.ack( inSeg.getAckNumber() );
+			if( !inSeg.isSyn() ) sess.sendWindow = inSeg.getWindowSize() << sess.sendWindowScale;
+			// After a retransmission timeout they may ack more than we've (re)sent
+			if( TCPSequence.before( sess.sendNext, sess.outBuf.sequence ) ) sess.sendNext = sess.outBuf.sequence;
+			if( sess.sackEnabled ) updateScoreboard( sess );
+		}
+		boolean progress = sess.outBuf.sequence != oldOutSeq || sess.outBuf.synAcked != wasSynAcked;
+		long now = timers.getCurrentTime();
+		if( !wasSynAcked && sess.outBuf.synAcked ) --halfOpenSessions;
+		if( progress ) {
+			// They're getting our stuff; start the retransmit clock afresh
+			sess.retransmits = 0;
+			sampleRoundTripTime( sess, now );
+			timers.cancel( sess.retransmitTimer );
+			sess.dupAcks = 0;
+			if( !sess.inRecovery ) {
+				sess.congestion.onAck( sess.outBuf.sequence - oldOutSeq, now );
+			} else if( TCPSequence.afterOrAt( sess.outBuf.sequence, sess.recoveryPoint ) ) {
+				sess.inRecovery = false;
+				sess.congestion.onRecoveryComplete( now );
+			}
+		} else if(
+			inSeg.isAck() && inSeg.getAckNumber() == oldOutSeq && sess.sendNext != oldOutSeq &&
+			!inSeg.isSyn() && !inSeg.isFin() && inSeg.getDataSize() == 0 && sess.sendWindow == oldSendWindow
+		) {
+			// Duplicate ack (RFC 5681 section 2): something after oldOutSeq got there
+			++sess.dupAcks;
+		}
+		if(
+			!sess.inRecovery && TCPSequence.afterOrAt( sess.outBuf.sequence, sess.recoveryPoint ) &&
+			(sess.dupAcks >= DUP_THRESHOLD || nextLostSequence( sess ) != sess.sendNext)
+		) {
+			enterRecovery( sess );
+		}
 		
-		boolean ackRequired = inSeg.isSyn() || inSeg.isFin() || inSeg.hasData();
-		// 'response address pair'
-		SocketAddressPair rap = inSeg.getInverseAddressPair();
+		sess.keepaliveProbes = 0;
+		timers.schedule( sess.keepaliveTimer, KEEPALIVE_IDLE_MILLIS );
+		if( ackRequired || progress ) timers.schedule( sess.idleTimer, IDLE_TIMEOUT_MILLIS );
 		
+		// Anything this sends carries an ack
 		boolean ackSent = sendSomeOutgoingData(sess);
 		
-		if( ackRequired && !ackSent ) {
-			outputSegmentSink.give( TCPSegment.create(
-				rap,
-				sess.outBuf.sequence + sess.outBuf.buffer.length,
-				sess.inputSequence,
-				TCPFlags.ACK,
-				WINDOW_SIZE,
-				SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0
-			));
+		if( !ackSent ) {
+			if( ackNow || sess.segmentsUnacked >= DELAYED_ACK_SEGMENTS ) {
+				sendAck( sess );
+			} else if( newData && !sess.delayedAckTimer.isScheduled() ) {
+				timers.schedule( sess.delayedAckTimer, DELAYED_ACK_MILLIS );
+			}
 		}
 		
-		// TODO: as long as there is data in the output buffers or unacked fins,
-		// register the session as needs checking up on.
-		
-		// TODO: Remove closed sessions when both ends are closed and fins have been acknowledged
+		if( sess.isFinished() ) {
+			removeSession( sess );
+		} else if( sess.hasUnackedOutput() && !sess.retransmitTimer.isScheduled() ) {
+			timers.schedule( sess.retransmitTimer, sess.rtt.getRto() );
+		}
 	}
 }
@@ -0,0 +1,16 @@
+package togos.icmpresponder.tcp;
+
+/**
+ * Comparisons of 32-bit sequence numbers that work across wraparound,
+ * as long as the numbers being compared are within 2^31 of each other
+ * (RFC 793's 'modulo 2**32' arithmetic).
+ */
+public class TCPSequence
+{
+	public static boolean before( int a, int b ) { return a - b < 0; }
+	public static boolean beforeOrAt( int a, int b ) { return a - b <= 0; }
+	public static boolean after( int a, int b ) { return a - b > 0; }
+	public static boolean afterOrAt( int a, int b ) { return a - b >= 0; }
+	public static int max( int a, int b ) { return a - b >= 0 ? a : b; }
+	public static int min( int a, int b ) { return a - b <= 0 ? a : b; }
+}
@@ -0,0 +1,55 @@
+package togos.icmpresponder.udp;
+
+/**
+ * Fixed-size pool of PacketBuffers, all carved out of a single
+ * backing array so that nothing needs to be allocated per datagram.
+ *
+ * Buffers are heap (array-backed) rather than direct because
+ * the packet parsers work on byte[]s; a direct buffer would
+ * need to be copied out again before it could be parsed.
+ * 
+ * take() and release() may be called from different threads.
+ */
+public class BufferPool
+{
+	public static final int DEFAULT_BUFFER_SIZE = 2048;
+	
+	/** The array that all of this pool's buffers are slices of */
+	public final byte[] slab;
+	public final int bufferSize;
+	protected final PacketBuffer[] free;
+	protected int freeCount;
+	
+	public BufferPool( int bufferCount, int bufferSize ) {
+		this.bufferSize = bufferSize;
+		slab = new byte[bufferCount * bufferSize];
+		free = new PacketBuffer[bufferCount];
+		for( int i=0; i<bufferCount; ++i ) {
+			free[i] = new PacketBuffer( slab, i*bufferSize, bufferSize );
+		}
+		freeCount = bufferCount;
+	}
+	
+	/** @return a buffer, or null if they are all in use */
+	public synchronized PacketBuffer take() {
+		if( freeCount == 0 ) return null;
+		PacketBuffer b = free[--freeCount];
+		free[freeCount] = null;
+		return b;
+	}
+	
+	/** Like take(), but if they're all in use, waits for one to be released */
+	public synchronized PacketBuffer takeWaiting() throws InterruptedException {
+		while( freeCount == 0 ) wait();
+		return take();
+	}
+	
+	public synchronized void release( PacketBuffer b ) {
+		assert( freeCount < free.length );
+		free[freeCount++] = b;
+		// Someone may be waiting in takeWaiting
+		if( freeCount == 1 ) notifyAll();
+	}
+	
+	public synchronized int getFreeCount() { return freeCount; }
+}
@@ -0,0 +1,274 @@
+package togos.icmpresponder.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import togos.icmpresponder.RawPacketSink;
+import togos.icmpresponder.Sink;
+import togos.icmpresponder.TimerDriven;
+import togos.icmpresponder.log.PacketLog;
+import togos.icmpresponder.packet.IPPacket;
+import togos.icmpresponder.stats.ResponderStats;
+
+/**
+ * Receives IP packets tunnelled over UDP using a DatagramChannel,
+ * reading them into pooled buffers and handing the parser a view
+ * of those buffers directly (no per-packet copy).
+ */
+public class DatagramChannelTunnel implements Sink<IPPacket>, RawPacketSink
+{
+	public final DatagramChannel channel;
+	public final BufferPool pool;
+	public final PeerRoutingTable routes;
+	protected long nextRouteExpiry = 0;
+	
+	/**
+	 * When true, replies are queued up in pendingReplies
+	 * and sent all together by flushReplies().
+	 */
+	protected boolean batching = false;
+	protected byte[][] pendingReplyBuffers = new byte[64][];
+	protected int[] pendingReplyOffsets = new int[64];
+	protected int[] pendingReplySizes = new int[64];
+	protected SocketAddress[] pendingReplyDestinations = new SocketAddress[64];
+	/** Pool buffers that pending replies were copied into, to be released after flushing */
+	protected PacketBuffer[] pendingReplyCopies = new PacketBuffer[64];
+	protected int pendingReplyCount = 0;
+	
+	/**
+	 * Per-thread ByteBuffer over the whole of pool.slab, so that
+	 * packets in pooled buffers can be sent without wrapping them
+	 * in a new ByteBuffer each time.
+	 */
+	protected final ThreadLocal<ByteBuffer> slabView = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() { return ByteBuffer.wrap( pool.slab ); }
+	};
+	
+	public DatagramChannelTunnel( DatagramChannel channel, BufferPool pool, PeerRoutingTable routes ) {
+		this.channel = channel;
+		this.pool = pool;
+		this.routes = routes;
+	}
+	
+	public static DatagramChannelTunnel open( int port, int bufferCount ) throws Exception {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind( new InetSocketAddress(port) );
+		return new DatagramChannelTunnel( channel, new BufferPool(bufferCount, BufferPool.DEFAULT_BUFFER_SIZE), new PeerRoutingTable() );
+	}
+	
+	protected void send( byte[] buf, int off, int size, SocketAddress dest ) throws Exception {
+		ByteBuffer bb;
+		if( buf == pool.slab ) {
+			bb = slabView.get();
+			bb.clear();
+			bb.limit( off + size );
+			bb.position( off );
+		} else {
+			bb = ByteBuffer.wrap( buf, off, size );
+		}
+		// If the socket's send buffer is full this sends nothing,
+		// which is no worse than the packet being lost on the wire.
+		channel.send( bb, dest );
+	}
+	
+	/**
+	 * Sends a packet to the peer that its destination address
+	 * was last seen coming from.  Packets to unknown addresses are dropped.
+	 * 
+	 * In batching mode the packet is only queued.  Packets in buffers
+	 * from the pool (i.e. replies written over the requests) are assumed
+	 * to stay put until the end of the batch, when the received buffers
+	 * are released.  Anything else is copied into a spare pool buffer
+	 * so that the caller can reuse its buffer right away.
+	 */
+	public void give( byte[] buf, int off, int size ) throws Exception {
+		SocketAddress dest = routes.lookupForPacket( buf, off, size, System.currentTimeMillis() );
+		if( dest == null ) {
+			ResponderStats.getDefault().unroutablePackets.increment();
+			PacketLog.getDefault().log( PacketLog.WARN, "No route to packet's destination; dropping it" );
+			return;
+		}
+		if( !batching ) {
+			send( buf, off, size, dest );
+			return;
+		}
+		if( pendingReplyCount == pendingReplyBuffers.length ) flushReplies();
+		PacketBuffer copy = null;
+		if( buf != pool.slab ) {
+			if( size > pool.bufferSize || (copy = pool.take()) == null ) {
+				// Can't hold onto it, so send it now
+				send( buf, off, size, dest );
+				return;
+			}
+			System.arraycopy( buf, off, copy.array, copy.offset, size );
+			buf = copy.array;
+			off = copy.offset;
+		}
+		pendingReplyBuffers[pendingReplyCount] = buf;
+		pendingReplyOffsets[pendingReplyCount] = off;
+		pendingReplySizes[pendingReplyCount] = size;
+		pendingReplyDestinations[pendingReplyCount] = dest;
+		pendingReplyCopies[pendingReplyCount] = copy;
+		++pendingReplyCount;
+	}
+	
+	public void give( IPPacket p ) throws Exception {
+		give( p.getBuffer(), p.getOffset(), p.getSize() );
+	}
+	
+	/**
+	 * Record the route back to a received packet's sender,
+	 * and every now and then clear out old routes.
+	 */
+	public void learnRoute( PacketBuffer pb, long now ) {
+		routes.learnFromPacket( pb.array, pb.offset, pb.size, pb.sender, now );
+		if( now >= nextRouteExpiry ) {
+			routes.expire( now );
+			nextRouteExpiry = now + 10000;
+		}
+	}
+	
+	protected void flushReplies() throws Exception {
+		try {
+			for( int i=0; i<pendingReplyCount; ++i ) {
+				send( pendingReplyBuffers[i], pendingReplyOffsets[i], pendingReplySizes[i], pendingReplyDestinations[i] );
+			}
+		} finally {
+			for( int i=0; i<pendingReplyCount; ++i ) {
+				pendingReplyBuffers[i] = null;
+				pendingReplyDestinations[i] = null;
+				if( pendingReplyCopies[i] != null ) {
+					pool.release( pendingReplyCopies[i] );
+					pendingReplyCopies[i] = null;
+				}
+			}
+			pendingReplyCount = 0;
+		}
+	}
+	
+	/**
+	 * Wait for the channel to become readable, or, if the handler
+	 * has timers, for the next of those to be due.
+	 */
+	protected static void select( Selector selector, TimerDriven timed ) throws IOException {
+		long timeout = timed == null ? -1 : timed.getTimeUntilNextTimer();
+		if( timeout < 0 ) {
+			selector.select();
+		} else {
+			selector.select( Math.max( 1, timeout ) );
+		}
+		selector.selectedKeys().clear();
+	}
+	
+	/** Run timers, logging rather than throwing any error, so that one can't stop the tunnel */
+	protected static void advanceTime( TimerDriven timed, long now ) {
+		if( timed == null ) return;
+		try {
+			timed.advanceTime( now );
+		} catch( Exception e ) {
+			PacketLog.getDefault().log( PacketLog.ERROR, "Error while running timers: "+e.getMessage() );
+		}
+	}
+	
+	/** Likewise for handling a packet */
+	protected static void handle( RawPacketSink handler, PacketBuffer pb ) {
+		try {
+			handler.give( pb.array, pb.offset, pb.size );
+		} catch( Exception e ) {
+			PacketLog.getDefault().log( PacketLog.ERROR, "Error while handling packet: "+e.getMessage() );
+		}
+	}
+	
+	/**
+	 * Receive packets forever, passing each one to handler.
+	 * The packet's buffer is recycled as soon as handler.give returns,
+	 * so handlers must copy anything they want to keep.
+	 * Until then they may modify it, e.g. to turn it into a reply.
+	 * 
+	 * If the handler is TimerDriven, its time is advanced before each
+	 * packet and whenever its next timer's due.
+	 */
+	public void run( RawPacketSink handler ) throws Exception {
+		TimerDriven timed = handler instanceof TimerDriven ? (TimerDriven)handler : null;
+		channel.configureBlocking( false );
+		Selector selector = Selector.open();
+		channel.register( selector, SelectionKey.OP_READ );
+		try {
+			while( true ) {
+				select( selector, timed );
+				while( true ) {
+					PacketBuffer pb = pool.take();
+					// Anything left waiting gets read next time around
+					if( pb == null ) break;
+					try {
+						if( !pb.receive( channel ) ) break;
+						long now = System.currentTimeMillis();
+						learnRoute( pb, now );
+						advanceTime( timed, now );
+						handle( handler, pb );
+					} finally {
+						pool.release( pb );
+					}
+				}
+				advanceTime( timed, System.currentTimeMillis() );
+			}
+		} finally {
+			selector.close();
+		}
+	}
+	
+	/**
+	 * Like run, but each time the channel becomes readable, reads
+	 * as many datagrams as are waiting (up to maxBatchSize), passes
+	 * them all to the handler, and then sends all the replies at once.
+	 *
+	 * Received buffers are not recycled until the replies have been
+	 * flushed, so replies may refer to them.
+	 */
+	public void runBatched( RawPacketSink handler, int maxBatchSize ) throws Exception {
+		TimerDriven timed = handler instanceof TimerDriven ? (TimerDriven)handler : null;
+		PacketBuffer[] batch = new PacketBuffer[maxBatchSize];
+		channel.configureBlocking( false );
+		Selector selector = Selector.open();
+		channel.register( selector, SelectionKey.OP_READ );
+		batching = true;
+		try {
+			while( true ) {
+				select( selector, timed );
+				
+				int batchSize = 0;
+				try {
+					long now = System.currentTimeMillis();
+					while( batchSize < maxBatchSize ) {
+						PacketBuffer pb = pool.take();
+						if( pb == null ) break;
+						batch[batchSize++] = pb;
+						if( !pb.receive( channel ) ) break;
+						learnRoute( pb, now );
+					}
+					// Timers may send things too, so this is done while batching
+					advanceTime( timed, now );
+					for( int i=0; i<batchSize; ++i ) {
+						PacketBuffer pb = batch[i];
+						if( pb.sender == null ) continue;
+						handle( handler, pb );
+					}
+					flushReplies();
+				} finally {
+					for( int i=0; i<batchSize; ++i ) {
+						pool.release( batch[i] );
+						batch[i] = null;
+					}
+				}
+			}
+		} finally {
+			batching = false;
+			selector.close();
+		}
+	}
+}
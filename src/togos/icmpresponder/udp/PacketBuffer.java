@@ -0,0 +1,49 @@
+package togos.icmpresponder.udp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A reusable receive buffer.
+ * The ByteBuffer is a view onto array[offset..offset+capacity],
+ * so a received datagram can be handed to the parser without copying it.
+ */
+public class PacketBuffer
+{
+	public final ByteBuffer byteBuffer;
+	public final byte[] array;
+	public final int offset;
+	public final int capacity;
+	
+	/** Where the datagram currently in this buffer came from */
+	public SocketAddress sender;
+	/** Number of bytes of the datagram currently in this buffer */
+	public int size;
+	
+	public PacketBuffer( byte[] array, int offset, int capacity ) {
+		this.array = array;
+		this.offset = offset;
+		this.capacity = capacity;
+		this.byteBuffer = ByteBuffer.wrap( array, offset, capacity ).slice();
+	}
+	
+	public void clear() {
+		byteBuffer.clear();
+		sender = null;
+		size = 0;
+	}
+	
+	/**
+	 * Receive a datagram into this buffer.
+	 * @return false if the (non-blocking) channel had nothing to receive
+	 */
+	public boolean receive( DatagramChannel channel ) throws IOException {
+		clear();
+		sender = channel.receive( byteBuffer );
+		if( sender == null ) return false;
+		size = byteBuffer.position();
+		return true;
+	}
+}
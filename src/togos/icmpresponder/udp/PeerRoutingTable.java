@@ -0,0 +1,123 @@
+package togos.icmpresponder.udp;
+
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import togos.icmpresponder.ByteUtil;
+
+/**
+ * Remembers which tunnel peer (outer UDP address) each inner IPv6
+ * address was last seen coming from, so that replies to that address
+ * can be sent back the same way.
+ *
+ * Lookups don't lock or allocate; they may be done from any thread.
+ */
+public class PeerRoutingTable
+{
+	public static final long DEFAULT_EXPIRY_MILLIS = 300000;
+	
+	static final class AddressKey {
+		long hi, lo;
+		
+		AddressKey set( byte[] buf, int off ) {
+			hi = ((long)ByteUtil.decodeInt32(buf, off+0) << 32) | (ByteUtil.decodeInt32(buf, off+ 4) & 0xFFFFFFFFL);
+			lo = ((long)ByteUtil.decodeInt32(buf, off+8) << 32) | (ByteUtil.decodeInt32(buf, off+12) & 0xFFFFFFFFL);
+			return this;
+		}
+		
+		public int hashCode() {
+			long h = hi * 0x9E3779B97F4A7C15L + lo;
+			h ^= h >>> 32;
+			return (int)h;
+		}
+		
+		public boolean equals( Object o ) {
+			if( !(o instanceof AddressKey) ) return false;
+			AddressKey k = (AddressKey)o;
+			return hi == k.hi && lo == k.lo;
+		}
+	}
+	
+	static final class Route {
+		final SocketAddress peer;
+		volatile long lastSeen;
+		
+		Route( SocketAddress peer, long lastSeen ) {
+			this.peer = peer;
+			this.lastSeen = lastSeen;
+		}
+	}
+	
+	protected final ConcurrentHashMap<AddressKey,Route> routes = new ConcurrentHashMap<AddressKey,Route>();
+	protected final long expiryMillis;
+	/** Reused key for lookups so they don't need to allocate */
+	protected final ThreadLocal<AddressKey> probeKey = new ThreadLocal<AddressKey>() {
+		protected AddressKey initialValue() { return new AddressKey(); }
+	};
+	
+	public PeerRoutingTable( long expiryMillis ) {
+		this.expiryMillis = expiryMillis;
+	}
+	
+	public PeerRoutingTable() {
+		this( DEFAULT_EXPIRY_MILLIS );
+	}
+	
+	/**
+	 * Note that packets from the 16-byte IPv6 address at buf[off]
+	 * are coming from peer.
+	 */
+	public void learn( byte[] buf, int off, SocketAddress peer, long now ) {
+		Route r = routes.get( probeKey.get().set(buf, off) );
+		if( r != null && r.peer.equals(peer) ) {
+			r.lastSeen = now;
+		} else {
+			routes.put( new AddressKey().set(buf, off), new Route(peer, now) );
+		}
+	}
+	
+	/**
+	 * Learn the route from a raw received IP packet's source address.
+	 * Non-IPv6 packets are ignored.
+	 */
+	public void learnFromPacket( byte[] buf, int off, int size, SocketAddress peer, long now ) {
+		if( size < 40 || ((buf[off] >> 4) & 0xF) != 6 ) return;
+		learn( buf, off+8, peer, now );
+	}
+	
+	/**
+	 * @return the peer that the 16-byte IPv6 address at buf[off]
+	 *   was last seen coming from, or null if it is unknown or stale.
+	 */
+	public SocketAddress lookup( byte[] buf, int off, long now ) {
+		Route r = routes.get( probeKey.get().set(buf, off) );
+		if( r == null || now - r.lastSeen > expiryMillis ) return null;
+		return r.peer;
+	}
+	
+	/** Find the peer to send a raw IPv6 packet to, based on its destination address */
+	public SocketAddress lookupForPacket( byte[] buf, int off, int size, long now ) {
+		if( size < 40 || ((buf[off] >> 4) & 0xF) != 6 ) return null;
+		return lookup( buf, off+24, now );
+	}
+	
+	/**
+	 * Remove routes that haven't been used for longer than the expiry time.
+	 * @return the number of routes removed
+	 */
+	public int expire( long now ) {
+		int removed = 0;
+		for( Iterator<Map.Entry<AddressKey,Route>> i = routes.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<AddressKey,Route> e = i.next();
+			if( now - e.getValue().lastSeen > expiryMillis ) {
+				// Only remove it if it hasn't been replaced in the meantime
+				if( routes.remove( e.getKey(), e.getValue() ) ) ++removed;
+			}
+		}
+		return removed;
+	}
+	
+	public int size() { return routes.size(); }
+}
@@ -0,0 +1,178 @@
+package togos.icmpresponder.udp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import togos.icmpresponder.ByteUtil;
+import togos.icmpresponder.RawPacketSink;
+import togos.icmpresponder.Sink;
+import togos.icmpresponder.TimerDriven;
+import togos.icmpresponder.log.PacketLog;
+import togos.icmpresponder.packet.IPPacket;
+import togos.icmpresponder.stats.ResponderStats;
+
+/**
+ * Spreads incoming packets across a number of worker threads,
+ * each with its own handler.
+ *
+ * All packets of a given flow (source/destination address and port)
+ * go to the same worker, so per-flow state (e.g. TCP sessions) belongs
+ * to exactly one thread and needs no locking, and segments of a flow
+ * are handled in the order they arrived.
+ */
+public class ShardedPacketPipeline
+{
+	public interface HandlerFactory {
+		/**
+		 * Create a handler for a single worker.
+		 * Replies should be given to responseSink.
+		 */
+		public RawPacketSink createHandler( Sink<IPPacket> responseSink );
+	}
+	
+	class Worker extends Thread implements Sink<IPPacket>, RawPacketSink {
+		final BlockingQueue<PacketBuffer> queue;
+		final RawPacketSink handler;
+		/** handler, if it has timers to be driven */
+		final TimerDriven timed;
+		
+		public Worker( int index, int queueSize, HandlerFactory handlerFactory ) {
+			super("packet-worker-"+index);
+			setDaemon(true);
+			this.queue = new ArrayBlockingQueue<PacketBuffer>(queueSize);
+			this.handler = handlerFactory.createHandler(this);
+			this.timed = handler instanceof TimerDriven ? (TimerDriven)handler : null;
+		}
+		
+		/** Send a reply (to whichever peer its destination is routed to) */
+		public void give( IPPacket p ) throws Exception {
+			tunnel.give( p );
+		}
+		
+		public void give( byte[] buf, int off, int size ) throws Exception {
+			tunnel.give( buf, off, size );
+		}
+		
+		@Override public void run() {
+			while( true ) {
+				PacketBuffer pb;
+				try {
+					// Don't sleep past the handler's next timer
+					long timeout = timed == null ? -1 : timed.getTimeUntilNextTimer();
+					pb = timeout < 0 ? queue.take() : queue.poll( timeout, TimeUnit.MILLISECONDS );
+				} catch( InterruptedException e ) {
+					return;
+				}
+				if( timed != null ) {
+					try {
+						timed.advanceTime( System.currentTimeMillis() );
+					} catch( Exception e ) {
+						PacketLog.getDefault().log( PacketLog.ERROR, "Error while running timers: "+e.getMessage() );
+					}
+				}
+				if( pb == null ) continue;
+				try {
+					handler.give( pb.array, pb.offset, pb.size );
+				} catch( Exception e ) {
+					PacketLog.getDefault().log( PacketLog.ERROR, "Error while handling packet: "+e.getMessage() );
+				} finally {
+					pool.release( pb );
+				}
+			}
+		}
+	}
+	
+	protected final DatagramChannelTunnel tunnel;
+	protected final DatagramChannel channel;
+	protected final BufferPool pool;
+	protected final Worker[] workers;
+	
+	/**
+	 * @param tunnel provides the channel, buffer pool, and routing table;
+	 *   workers send their replies through it (which is safe to do
+	 *   from multiple threads since the tunnel isn't in batching mode).
+	 */
+	public ShardedPacketPipeline( DatagramChannelTunnel tunnel, int workerCount, int queueSize, HandlerFactory handlerFactory ) {
+		this.tunnel = tunnel;
+		this.channel = tunnel.channel;
+		this.pool = tunnel.pool;
+		this.workers = new Worker[workerCount];
+		for( int i=0; i<workerCount; ++i ) {
+			workers[i] = new Worker( i, queueSize, handlerFactory );
+		}
+	}
+	
+	protected static int mix( int h, int v ) {
+		h ^= v * 0xCC9E2D51;
+		h = (h << 13) | (h >>> 19);
+		return h * 5 + 0xE6546B64;
+	}
+	
+	/**
+	 * Pick a shard for a raw IP packet.
+	 * Packets of the same TCP (or other port-based) flow always land on
+	 * the same shard.  ICMPv6 messages are hashed on their identifier and
+	 * sequence number as well so that echo requests from a single host
+	 * are spread over all shards.
+	 */
+	public static int shardIndex( byte[] buf, int off, int size, int shardCount ) {
+		if( shardCount == 1 ) return 0;
+		if( size < 40 || ((buf[off] >> 4) & 0xF) != 6 ) return 0;
+		
+		int h = 6;
+		for( int i=8; i<40; i += 4 ) h = mix( h, ByteUtil.decodeInt32(buf, off+i) );
+		int nextHeader = buf[off+6] & 0xFF;
+		h = mix( h, nextHeader );
+		switch( nextHeader ) {
+		case( 6 ): case( 17 ):
+			// Source and destination ports
+			if( size >= 44 ) h = mix( h, ByteUtil.decodeInt32(buf, off+40) );
+			break;
+		case( 58 ):
+			// Echo identifier and sequence number
+			if( size >= 48 ) h = mix( h, ByteUtil.decodeInt32(buf, off+44) );
+			break;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return (h & 0x7FFFFFFF) % shardCount;
+	}
+	
+	/**
+	 * Start the workers and receive packets forever, passing each
+	 * to the appropriate worker's queue.  If that queue is full
+	 * the packet is dropped.  If the workers are holding every buffer,
+	 * this waits for them to give one back, leaving anything that
+	 * arrives in the meantime to the socket's receive buffer.
+	 */
+	public void run() throws Exception {
+		for( Worker w : workers ) w.start();
+		channel.configureBlocking( true );
+		while( true ) {
+			PacketBuffer pb = pool.takeWaiting();
+			boolean queued = false;
+			try {
+				try {
+					pb.receive( channel );
+				} catch( ClosedChannelException e ) {
+					throw e;
+				} catch( IOException e ) {
+					// e.g. an ICMP error for something we sent; the next one may be fine
+					PacketLog.getDefault().log( PacketLog.ERROR, "Error while receiving packet: "+e.getMessage() );
+					continue;
+				}
+				tunnel.learnRoute( pb, System.currentTimeMillis() );
+				Worker w = workers[shardIndex( pb.array, pb.offset, pb.size, workers.length )];
+				queued = w.queue.offer( pb );
+				if( !queued ) ResponderStats.getDefault().droppedPackets.increment();
+			} finally {
+				if( !queued ) pool.release( pb );
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package togos.icmpresponder;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FlowTableTest extends TestCase
+{
+	static final byte[] addresses = new byte[]{
+		20,20,0,0,0,0,0,0,0,0,0,0,0,0,0,1,
+		20,20,0,0,0,0,0,0,0,0,0,0,0,0,0,2,
+	};
+	
+	protected static FlowKey key( int clientPort ) {
+		return new FlowKey().set( addresses, 0, clientPort, 16, 80 );
+	}
+	
+	public void testPortsDistinguishFlows() {
+		SocketAddressPair a = new SimpleSocketAddressPair( 6, addresses, 0, 1111, addresses, 16, 80 );
+		SocketAddressPair b = new SimpleSocketAddressPair( 6, addresses, 0, 2222, addresses, 16, 80 );
+		assertFalse( a.equals(b) );
+		assertFalse( a.hashCode() == b.hashCode() );
+		assertEquals( key(1111).hashCode(), a.hashCode() );
+		SocketAddressPair v4 = new SimpleSocketAddressPair( 4, new byte[]{10,0,0,1}, 0, 1111, new byte[]{10,0,0,2}, 0, 80 );
+		assertEquals( new FlowKey().set( v4 ).hashCode(), v4.hashCode() );
+	}
+	
+	/** Random puts and removes (lots of them colliding) should agree with a HashMap */
+	public void testAgainstHashMap() {
+		FlowTable<Integer> table = new FlowTable<Integer>();
+		HashMap<FlowKey,Integer> reference = new HashMap<FlowKey,Integer>();
+		Random r = new Random( 1234 );
+		for( int i=0; i<200000; ++i ) {
+			int port = r.nextInt( 5000 );
+			FlowKey k = key( port );
+			switch( r.nextInt(3) ) {
+			case( 0 ): case( 1 ):
+				assertEquals( reference.put(k.copy(), i), table.put(k, i) );
+				break;
+			default:
+				assertEquals( reference.remove(k), table.remove(k) );
+			}
+			assertEquals( reference.size(), table.size() );
+		}
+		for( int port=0; port<5000; ++port ) {
+			assertEquals( reference.get(key(port)), table.get(key(port)) );
+			assertEquals( reference.get(key(port)), table.get( addresses, 0, port, 16, 80 ) );
+		}
+	}
+}
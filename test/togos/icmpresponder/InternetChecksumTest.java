@@ -1,6 +1,9 @@
 package togos.icmpresponder;
 
+import java.util.Random;
+
 import junit.framework.TestCase;
+import togos.blob.util.BlobUtil;
 
 public class InternetChecksumTest extends TestCase {
 	public void testSimplestValidValue() {
@@ -56,4 +59,77 @@ public class InternetChecksumTest extends TestCase {
 
 		assertEquals(expected, actual);
 	}
+	
+	public void testWordAtATimeAgreesWithOldChecksum() {
+		Random r = new Random(1234);
+		for( int n=0; n<1000; ++n ) {
+			byte[] buf = new byte[r.nextInt(200)];
+			r.nextBytes(buf);
+			int offset = buf.length == 0 ? 0 : r.nextInt(buf.length);
+			int length = r.nextInt(buf.length - offset + 1);
+			
+			long expected = InternetChecksum.oldChecksum( BlobUtil.slice(buf, offset, length) );
+			long actual = InternetChecksum.checksum( buf, offset, length );
+			
+			assertEquals( "length "+length+" at offset "+offset, expected, actual );
+		}
+	}
+	
+	public void testSumAccumulatesAcrossRanges() {
+		Random r = new Random(5678);
+		for( int n=0; n<1000; ++n ) {
+			byte[] buf = new byte[r.nextInt(2000)];
+			r.nextBytes(buf);
+			// Split into even-length ranges, except possibly the last one
+			int split1 = r.nextInt(buf.length/2 + 1) * 2;
+			int split2 = split1 + r.nextInt((buf.length - split1)/2 + 1) * 2;
+			
+			long sum = InternetChecksum.sum( buf, 0, split1, 0 );
+			sum = InternetChecksum.sum( buf, split1, split2 - split1, sum );
+			sum = InternetChecksum.sum( buf, split2, buf.length - split2, sum );
+			
+			assertEquals( InternetChecksum.oldChecksum(buf), InternetChecksum.finish(sum) );
+		}
+	}
+	
+	public void testLargeBufferOfOnes() {
+		// Lots of carries to fold back in
+		byte[] buf = new byte[65536];
+		for( int i=0; i<buf.length; ++i ) buf[i] = (byte)0xFF;
+		buf[0] = (byte)0xFE;
+		
+		assertEquals( InternetChecksum.oldChecksum(buf), InternetChecksum.checksum(buf) );
+	}
+	
+	public void testIncrementalUpdateMatchesRecalculation() {
+		Random r = new Random(91011);
+		for( int n=0; n<1000; ++n ) {
+			byte[] buf = new byte[2 + r.nextInt(100)*2];
+			r.nextBytes(buf);
+			int checksum = (int)InternetChecksum.checksum(buf);
+			
+			int wordOffset = r.nextInt(buf.length/2)*2;
+			int oldWord = ByteUtil.decodeUInt16(buf, wordOffset);
+			int newWord = r.nextInt(0x10000);
+			ByteUtil.encodeInt16(newWord, buf, wordOffset);
+			
+			assertEquals( InternetChecksum.checksum(buf), InternetChecksum.update16(checksum, oldWord, newWord) );
+		}
+	}
+	
+	public void testIncrementalUpdate32MatchesRecalculation() {
+		Random r = new Random(121314);
+		for( int n=0; n<1000; ++n ) {
+			byte[] buf = new byte[4 + r.nextInt(100)*2];
+			r.nextBytes(buf);
+			int checksum = (int)InternetChecksum.checksum(buf);
+			
+			int offset = r.nextInt(buf.length/2 - 1)*2;
+			int oldValue = ByteUtil.decodeInt32(buf, offset);
+			int newValue = r.nextInt();
+			ByteUtil.encodeInt32(newValue, buf, offset);
+			
+			assertEquals( InternetChecksum.checksum(buf), InternetChecksum.update32(checksum, oldValue, newValue) );
+		}
+	}
 }
@@ -0,0 +1,98 @@
+package togos.icmpresponder;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TimerWheelTest extends TestCase
+{
+	ArrayList<TestTimer> fired = new ArrayList<TestTimer>();
+	
+	class TestTimer extends TimerWheel.Timer {
+		long firedAt = -1;
+		protected void fire( long now ) {
+			firedAt = now;
+			fired.add( this );
+		}
+	}
+	
+	public void testFiresOnlyWhenDue() {
+		TimerWheel w = new TimerWheel( 1000, 10, 16 );
+		TestTimer a = new TestTimer(), b = new TestTimer(), c = new TestTimer();
+		w.schedule( a, 25 );
+		w.schedule( b, 500 ); // Several laps of the wheel away
+		w.schedule( c, 0 );
+		assertEquals( 3, w.size() );
+		
+		w.advanceTime( 1005 );
+		assertEquals( 0, fired.size() );
+		w.advanceTime( 1010 );
+		assertEquals( 1, fired.size() );
+		assertSame( c, fired.get(0) );
+		w.advanceTime( 1024 );
+		assertEquals( 1, fired.size() );
+		w.advanceTime( 1030 );
+		assertEquals( 2, fired.size() );
+		assertSame( a, fired.get(1) );
+		for( long t=1040; t<1500; t += 10 ) w.advanceTime( t );
+		assertEquals( 2, fired.size() );
+		assertTrue( b.isScheduled() );
+		w.advanceTime( 1500 );
+		assertEquals( 3, fired.size() );
+		assertFalse( b.isScheduled() );
+		assertEquals( 0, w.size() );
+		assertEquals( -1, w.getTimeUntilNextTick() );
+	}
+	
+	public void testCancelAndReschedule() {
+		TimerWheel w = new TimerWheel( 0, 10, 16 );
+		TestTimer a = new TestTimer(), b = new TestTimer();
+		w.schedule( a, 50 );
+		w.schedule( b, 50 );
+		assertTrue( w.cancel( a ) );
+		assertFalse( w.cancel( a ) );
+		w.schedule( b, 100 );
+		assertEquals( 1, w.size() );
+		w.advanceTime( 99 );
+		assertEquals( 0, fired.size() );
+		w.advanceTime( 100 );
+		assertEquals( 1, fired.size() );
+		assertEquals( 100, b.firedAt );
+	}
+	
+	/** A timer firing can cancel others that are due at the same time */
+	public void testCancelFromTimer() {
+		final TimerWheel w = new TimerWheel( 0, 10, 16 );
+		final TestTimer victim = new TestTimer();
+		TestTimer killer = new TestTimer() {
+			protected void fire( long now ) {
+				super.fire( now );
+				w.cancel( victim );
+			}
+		};
+		w.schedule( killer, 10 );
+		w.schedule( victim, 10 );
+		w.advanceTime( 20 );
+		assertEquals( 1, fired.size() );
+		assertSame( killer, fired.get(0) );
+		assertEquals( 0, w.size() );
+	}
+	
+	public void testRandomSchedules() {
+		Random r = new Random( 1234 );
+		TimerWheel w = new TimerWheel( 0, 10, 64 );
+		TestTimer[] timers = new TestTimer[1000];
+		for( int i=0; i<timers.length; ++i ) {
+			timers[i] = new TestTimer();
+			w.schedule( timers[i], r.nextInt(5000) );
+		}
+		for( long t=0; t<6000; t += r.nextInt(50) ) w.advanceTime( t );
+		w.advanceTime( 6000 );
+		assertEquals( timers.length, fired.size() );
+		for( TestTimer t : timers ) {
+			assertTrue( t.firedAt >= t.getDeadline() );
+			assertTrue( t.firedAt < t.getDeadline() + 60 );
+		}
+	}
+}
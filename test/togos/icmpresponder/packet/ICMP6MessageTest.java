@@ -0,0 +1,64 @@
+package togos.icmpresponder.packet;
+
+import junit.framework.TestCase;
+import togos.blob.util.BlobUtil;
+
+public class ICMP6MessageTest extends TestCase
+{
+	static final byte[] addressA = new byte[]{20,20,0,0,0,0,0,0,0,0,0,0,0,0,0,1};
+	static final byte[] addressB = new byte[]{20,20,0,0,0,0,0,0,0,0,0,0,0,0,0,2};
+	
+	protected static ICMP6Message echoRequest( int payloadSize ) {
+		byte[] payload = new byte[payloadSize];
+		for( int i=0; i<payloadSize; ++i ) payload[i] = (byte)(i*7);
+		return ICMP6Message.create( addressA, 0, addressB, 0, 64, ICMP6Message.ECHO_REQUEST, 0, payload, 0, payload.length );
+	}
+	
+	protected static ICMP6Message echoReply( ICMP6Message request ) {
+		return ICMP6Message.createEchoReply( request.buffer,
+			IP6Packet.SOURCE_ADDRESS_OFFSET, IP6Packet.DESTINATION_ADDRESS_OFFSET,
+			request.offset, request.size, 64 );
+	}
+	
+	public void testEchoReplyChecksum() {
+		for( int size=4; size<1500; size += 37 ) {
+			ICMP6Message request = echoRequest( size );
+			assertEquals( 0, ICMP6Message.calculateIcmp6Checksum( (IP6Packet)request.ipPacket ) );
+			
+			ICMP6Message reply = echoReply( request );
+			assertEquals( ICMP6Message.ECHO_REPLY, reply.icmpMessageType );
+			assertEquals( 0, ICMP6Message.calculateIcmp6Checksum( (IP6Packet)reply.ipPacket ) );
+			assertEquals( request.getPayload(), reply.getPayload() );
+			assertTrue( BlobUtil.equals( addressB, BlobUtil.slice(reply.buffer, 8, 16) ) );
+			assertTrue( BlobUtil.equals( addressA, BlobUtil.slice(reply.buffer, 24, 16) ) );
+		}
+	}
+	
+	public void testEchoReplyWithoutExtensionHeaders() {
+		byte[] p = PacketContextTest.withExtensionHeader( echoRequest( 40 ).ipPacket.getBuffer(),
+			PacketContext.HOP_BY_HOP_OPTIONS, new byte[]{ 0, 0, 1, 4, 0, 0, 0, 0 } );
+		PacketContext ctx = new PacketContext();
+		assertTrue( ctx.decode( p, 0, p.length ) );
+		ICMP6Message reply = ICMP6Message.createEchoReply( p,
+			ctx.ip.getSourceAddressOffset(), ctx.ip.getDestinationAddressOffset(),
+			ctx.icmp.getOffset(), ctx.icmp.getSize(), 64 );
+		assertEquals( ICMP6Message.ICMP6_PROTOCOL_NUMBER, reply.ipPacket.getBuffer()[6] );
+		assertEquals( 0, ICMP6Message.calculateIcmp6Checksum( (IP6Packet)reply.ipPacket ) );
+		assertEquals( 40, reply.getPayload().getSize() );
+	}
+	
+	public void testTurnIntoEchoReplyInPlace() {
+		for( int size=4; size<1500; size += 37 ) {
+			ICMP6Message request = echoRequest( size );
+			byte[] expected = echoReply( request ).ipPacket.getBuffer();
+			
+			// At an offset and with some junk after it, like in a pooled buffer
+			int off = 100;
+			byte[] buf = new byte[off + request.ipPacket.getSize() + 10];
+			System.arraycopy( request.ipPacket.getBuffer(), 0, buf, off, request.ipPacket.getSize() );
+			int replySize = ICMP6Message.turnIntoEchoReply( buf, off, 64 );
+			assertEquals( expected.length, replySize );
+			assertTrue( BlobUtil.equals( expected, BlobUtil.slice(buf, off, replySize) ) );
+		}
+	}
+}
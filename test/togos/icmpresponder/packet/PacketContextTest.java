@@ -0,0 +1,75 @@
+package togos.icmpresponder.packet;
+
+import junit.framework.TestCase;
+import togos.blob.util.BlobUtil;
+import togos.icmpresponder.ByteUtil;
+import togos.icmpresponder.tcp.TCPFlags;
+
+public class PacketContextTest extends TestCase
+{
+	static final byte[] addressA = new byte[]{20,20,0,0,0,0,0,0,0,0,0,0,0,0,0,1};
+	static final byte[] addressB = new byte[]{20,20,0,0,0,0,0,0,0,0,0,0,0,0,0,2};
+	
+	PacketContext ctx = new PacketContext();
+	
+	/** Insert an 8-byte extension header of the given type after the IPv6 header */
+	protected static byte[] withExtensionHeader( byte[] packet, int type, byte[] header ) {
+		byte[] p = new byte[packet.length + 8];
+		System.arraycopy( packet, 0, p, 0, 40 );
+		System.arraycopy( header, 0, p, 40, 8 );
+		System.arraycopy( packet, 40, p, 48, packet.length - 40 );
+		p[40] = packet[6];
+		p[6] = (byte)type;
+		ByteUtil.encodeInt16( packet.length - 40 + 8, p, 4 );
+		return p;
+	}
+	
+	public void testTcp() {
+		byte[] data = BlobUtil.bytes("Hello.");
+		byte[] p = TCPSegment.createV6( addressA, 4321, addressB, 7, 1000, 2000, TCPFlags.ACK, 100, data, 0, data.length ).ipPacket.getBuffer();
+		assertTrue( ctx.decode( p, 0, p.length ) );
+		assertEquals( 6, ctx.getUpperProtocol() );
+		assertFalse( ctx.hasExtensionHeaders() );
+		assertEquals( 1000, ctx.tcp.getSequenceNumber() );
+		assertTrue( ctx.isChecksumValid() );
+		
+		p[p.length-1] ^= 1;
+		assertTrue( ctx.decode( p, 0, p.length ) );
+		assertFalse( ctx.isChecksumKnown() );
+		assertFalse( ctx.isChecksumValid() );
+	}
+	
+	public void testIcmpAfterExtensionHeaders() {
+		byte[] body = new byte[]{ 0, 1, 0, 2, 9, 9, 9 };
+		byte[] p = ICMP6Message.create( addressA, 0, addressB, 0, 64, ICMP6Message.ECHO_REQUEST, 0, body, 0, body.length ).ipPacket.getBuffer();
+		// Hop-by-hop options containing a 6-byte PadN
+		p = withExtensionHeader( p, PacketContext.HOP_BY_HOP_OPTIONS, new byte[]{ 0, 0, 1, 4, 0, 0, 0, 0 } );
+		assertTrue( ctx.decode( p, 0, p.length ) );
+		assertTrue( ctx.hasExtensionHeaders() );
+		assertEquals( 58, ctx.getUpperProtocol() );
+		assertEquals( 48, ctx.getUpperOffset() );
+		assertEquals( ICMP6Message.ECHO_REQUEST, ctx.icmp.getType() );
+		assertEquals( body.length, ctx.icmp.getBodySize() );
+		assertTrue( ctx.isChecksumValid() );
+	}
+	
+	public void testFragmentsAndTruncation() {
+		byte[] body = new byte[]{ 0, 1, 0, 2 };
+		byte[] p = ICMP6Message.create( addressA, 0, addressB, 0, 64, ICMP6Message.ECHO_REQUEST, 0, body, 0, body.length ).ipPacket.getBuffer();
+		
+		// First fragment of several
+		byte[] frag = withExtensionHeader( p, PacketContext.FRAGMENT, new byte[]{ 0, 0, 0, 1, 0, 0, 0, 42 } );
+		assertTrue( ctx.decode( frag, 0, frag.length ) );
+		assertEquals( PacketContext.FRAGMENT, ctx.getUpperProtocol() );
+		
+		// 'Atomic' fragment, i.e. the whole packet
+		frag = withExtensionHeader( p, PacketContext.FRAGMENT, new byte[]{ 0, 0, 0, 0, 0, 0, 0, 42 } );
+		assertTrue( ctx.decode( frag, 0, frag.length ) );
+		assertEquals( 58, ctx.getUpperProtocol() );
+		
+		// Destination options header claiming to be longer than the packet
+		byte[] bad = withExtensionHeader( p, PacketContext.DESTINATION_OPTIONS, new byte[]{ 0, 9, 0, 0, 0, 0, 0, 0 } );
+		assertFalse( ctx.decode( bad, 0, bad.length ) );
+		assertEquals( "Extension header 60 runs past end of packet", ctx.getErrorNote() );
+	}
+}
@@ -0,0 +1,72 @@
+package togos.icmpresponder.packet;
+
+import junit.framework.TestCase;
+import togos.blob.util.BlobUtil;
+import togos.icmpresponder.InternetChecksum;
+import togos.icmpresponder.tcp.TCPFlags;
+
+public class TCPSegmentTest extends TestCase
+{
+	static final byte[] addressA = new byte[]{20,20,0,0,0,0,0,0,0,0,0,0,0,0,0,1};
+	static final byte[] addressB = new byte[]{20,20,0,0,0,0,0,0,0,0,0,0,0,0,0,2};
+	
+	public void testEncodeIntoBufferAtOffset() {
+		byte[] data = BlobUtil.bytes("Hello, world!");
+		// MSS option, plus a NOP that'll need padding
+		byte[] options = new byte[]{ 2, 4, 0x05, (byte)0xB4, 1 };
+		byte[] buf = new byte[200];
+		int off = 17;
+		int size = TCPSegment.encodeV6( buf, off,
+			addressA, 0, 1234, addressB, 0, 80,
+			1000, 2000, TCPFlags.SYN|TCPFlags.ACK, 5000,
+			options, 0, options.length,
+			data, 0, data.length );
+		assertEquals( 40 + 20 + 8 + data.length, size );
+		
+		TCPSegment s = TCPSegment.parse( IPPacket.parse(buf, off, size) );
+		assertTrue( s.wellFormed );
+		assertEquals( 1234, s.sourcePort );
+		assertEquals( 80, s.destPort );
+		assertEquals( 1000, s.sequenceNumber );
+		assertEquals( 2000, s.ackNumber );
+		assertEquals( TCPFlags.SYN|TCPFlags.ACK, s.flags );
+		assertEquals( 8, s.optionsSize );
+		assertTrue( BlobUtil.equals( options, BlobUtil.slice(buf, s.optionsOffset, options.length) ) );
+		assertEquals( 0, buf[s.optionsOffset+7] );
+		assertTrue( BlobUtil.equals( data, BlobUtil.slice(buf, s.dataOffset, s.dataSize) ) );
+		assertEquals( 0, TCPSegment.calculateChecksum( s ) );
+		assertEquals( 0, InternetChecksum.finish( InternetChecksum.sum( buf, s.getOffset(), s.getSize(),
+			InternetChecksum.ip6PseudoHeaderSum( buf, off+8, buf, off+24, s.getSize(), 6 ) ) ) );
+	}
+	
+	public void testCreateMatchesParse() {
+		byte[] data = BlobUtil.bytes("Hello.");
+		TCPSegment created = TCPSegment.createV6( addressA, 4321, addressB, 7, -5, 77, TCPFlags.FIN|TCPFlags.ACK, 100, data, 0, data.length );
+		TCPSegment parsed = TCPSegment.parse( created.ipPacket );
+		assertEquals( parsed.toString(), created.toString() );
+		assertEquals( parsed.dataOffset, created.dataOffset );
+		assertEquals( 4321, created.sourcePort );
+		assertEquals( 0, TCPSegment.calculateChecksum( created ) );
+	}
+	
+	public void testDecoderMatchesParse() {
+		byte[] data = BlobUtil.bytes("Hello.");
+		TCPSegment seg = TCPSegment.createV6( addressA, 4321, addressB, 7, 1000, 2000, TCPFlags.ACK, 100, data, 0, data.length );
+		IP6Decoder ip = new IP6Decoder();
+		TCPDecoder tcp = new TCPDecoder();
+		assertTrue( ip.wrap( seg.ipPacket.getBuffer(), 0, seg.ipPacket.getSize() ) );
+		assertTrue( tcp.wrap( ip ) );
+		assertEquals( seg.toString(), tcp.toString() );
+		assertEquals( seg.dataOffset, tcp.getDataOffset() );
+		
+		// Data offset beyond the end of the segment
+		seg.ipPacket.getBuffer()[40+12] = (byte)0xF0;
+		assertTrue( ip.wrap( seg.ipPacket.getBuffer(), 0, seg.ipPacket.getSize() ) );
+		assertFalse( tcp.wrap( ip ) );
+		assertEquals( "Data offset (60 bytes) is out of range", tcp.getErrorNote() );
+		assertFalse( TCPSegment.parse( seg.ipPacket ).wellFormed );
+		
+		assertFalse( ip.wrap( seg.ipPacket.getBuffer(), 0, 39 ) );
+		assertEquals( IP6Decoder.TOO_SHORT, ip.getError() );
+	}
+}
@@ -6,10 +6,14 @@ import junit.framework.TestCase;
 import togos.blob.ByteChunk;
 import togos.blob.SimpleByteChunk;
 import togos.blob.util.BlobUtil;
+import togos.icmpresponder.FlowKey;
 import togos.icmpresponder.SimpleSocketAddressPair;
 import togos.icmpresponder.Sink;
 import togos.icmpresponder.SocketAddressPair;
+import togos.icmpresponder.packet.IPPacket;
+import togos.icmpresponder.packet.TCPOptions;
 import togos.icmpresponder.packet.TCPSegment;
+import togos.icmpresponder.stats.ResponderStats;
 
 public class TCPSegmentHandlerTest extends TestCase
 {
@@ -36,8 +40,6 @@ public class TCPSegmentHandlerTest extends TestCase
 
 	static final ByteChunk helloChunk = BlobUtil.byteChunk("Hello.");	
 	
-	// TODO: test with initial sequence numbers near Integer.MAX_VALUE
-	
 	public void testCombinedTransaction() throws Exception {
 		int initSeq = 1000;
 		int zSequence;
@@ -101,4 +103,549 @@ public class TCPSegmentHandlerTest extends TestCase
 		
 		assertEquals( 3, responseSegments.size() );
 	}
+	
+	protected static SocketAddressPair clientPair( int clientPort ) {
+		return new SimpleSocketAddressPair( 6, sap.getSourceAddressBuffer(), clientPort, sap.getDestinationAddressBuffer(), sap.getDestinationPort() );
+	}
+	
+	public void testInterleavedConnections() throws Exception {
+		SocketAddressPair sapA = clientPair( 1111 ), sapB = clientPair( 2222 );
+		tsh.give( TCPSegment.create( sapA, 1000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		tsh.give( TCPSegment.create( sapB, 5000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertEquals( 2, responseSegments.size() );
+		assertEquals( 2, tsh.connections.size() );
+		TCPSegment synAckA = responseSegments.get(0), synAckB = responseSegments.get(1);
+		assertEquals( 1111, synAckA.destPort );
+		assertEquals( 2222, synAckB.destPort );
+		
+		// Data on B first, then A, each with its own sequence numbers
+		tsh.give( TCPSegment.create( sapB, 5001, synAckB.sequenceNumber+1, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		tsh.give( TCPSegment.create( sapA, 1001, synAckA.sequenceNumber+1, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		assertEquals( 4, responseSegments.size() );
+		assertEquals( 2222, responseSegments.get(2).destPort );
+		assertEquals( 5007, responseSegments.get(2).ackNumber );
+		assertEquals( helloChunk, segPayload(responseSegments.get(2)) );
+		assertEquals( 1111, responseSegments.get(3).destPort );
+		assertEquals( 1007, responseSegments.get(3).ackNumber );
+		assertEquals( helloChunk, segPayload(responseSegments.get(3)) );
+		
+		// A segment for a connection that doesn't exist is ignored
+		tsh.give( TCPSegment.create( clientPair(3333), 1001, 0, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		assertEquals( 4, responseSegments.size() );
+		
+		// Reset A; B is still there
+		tsh.give( TCPSegment.create( sapA, 1007, 0, TCPFlags.RST, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertEquals( 1, tsh.connections.size() );
+	}
+	
+	public void testRetransmittedSyn() throws Exception {
+		tsh.give( TCPSegment.create( sap, 1000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		TCPSegmentHandler.TCPSession sess = session();
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		// Our SYN-ACK got lost, so they try again; same session, same SYN-ACK
+		tsh.give( TCPSegment.create( sap, 1000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertSame( sess, session() );
+		assertEquals( 2, responseSegments.size() );
+		TCPSegment synAck = responseSegments.get(1);
+		assertEquals( TCPFlags.SYN|TCPFlags.ACK, synAck.flags );
+		assertEquals( z - 1, synAck.sequenceNumber );
+		assertEquals( 1001, synAck.ackNumber );
+		
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		assertEquals( helloChunk, segPayload( responseSegments.get(2) ) );
+	}
+	
+	public void testSynForEstablishedSession() throws Exception {
+		tsh.give( TCPSegment.create( sap, 1000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		assertEquals( 2, responseSegments.size() );
+		TCPSegmentHandler.TCPSession sess = session();
+		
+		// Someone else's SYN with the right ports only gets a challenge ACK
+		tsh.give( TCPSegment.create( sap, 55555, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertSame( sess, session() );
+		assertEquals( 3, responseSegments.size() );
+		TCPSegment challenge = responseSegments.get(2);
+		assertEquals( TCPFlags.ACK, challenge.flags );
+		assertEquals( z + 6, challenge.sequenceNumber );
+		assertEquals( 1007, challenge.ackNumber );
+		
+		// The connection carries on as if nothing happened
+		tsh.give( TCPSegment.create( sap, 1007, z + 6, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		TCPSegment echo = responseSegments.get(3);
+		assertEquals( helloChunk, segPayload(echo) );
+		assertEquals( z + 6, echo.sequenceNumber );
+	}
+	
+	public void testManyConnections() throws Exception {
+		int count = 20000;
+		// They're all half-open at once, which would otherwise get them SYN cookies
+		tsh.synCookieThreshold = count;
+		for( int i=0; i<count; ++i ) {
+			tsh.give( TCPSegment.create( clientPair(10000+i), i, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		}
+		assertEquals( count, tsh.connections.size() );
+		for( int i=0; i<count; ++i ) {
+			TCPSegment synAck = responseSegments.get(i);
+			tsh.give( TCPSegment.create( clientPair(10000+i), i+1, synAck.sequenceNumber+1, TCPFlags.ACK|TCPFlags.FIN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+			TCPSegment finAck = responseSegments.get(responseSegments.size()-1);
+			assertEquals( i+2, finAck.ackNumber );
+			tsh.give( TCPSegment.create( clientPair(10000+i), i+2, finAck.sequenceNumber+1, TCPFlags.ACK, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		}
+		assertEquals( 0, tsh.connections.size() );
+	}
+	
+	/** Write and ack random amounts, checking the unacked data against a simple model */
+	public void testOutputBufferWrapsAround() {
+		java.util.Random r = new java.util.Random(42);
+		TCPSegmentHandler.TCPOutputBuffer ob = new TCPSegmentHandler.TCPOutputBuffer( 999 );
+		byte[] stream = new byte[200000];
+		r.nextBytes( stream );
+		int written = 0, acked = 0;
+		while( written < stream.length ) {
+			int w = Math.min( r.nextInt(3000), stream.length - written );
+			ob.write( stream, written, w, false );
+			written += w;
+			int a = r.nextInt( written - acked + 1 );
+			acked += a;
+			ob.ack( 1000 + acked );
+			
+			assertEquals( written - acked, ob.size() );
+			assertEquals( 1000 + acked, ob.sequence );
+			byte[] out = new byte[ob.size()];
+			ob.copyTo( 0, out, 0, out.length );
+			assertTrue( BlobUtil.equals( stream, acked, out, 0, out.length ) );
+		}
+		assertTrue( ob.ring.length <= 8192 );
+	}
+	
+	public void testRetransmitThenGiveUp() throws Exception {
+		long t = tsh.timers.getCurrentTime();
+		tsh.give( TCPSegment.create( sap, 1000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertEquals( 1, responseSegments.size() );
+		
+		// The SYN-ACK gets resent with exponential backoff...
+		tsh.advanceTime( t + TCPSegmentHandler.INITIAL_RTO_MILLIS - 10 );
+		assertEquals( 1, responseSegments.size() );
+		tsh.advanceTime( t += TCPSegmentHandler.INITIAL_RTO_MILLIS + 10 );
+		assertEquals( 2, responseSegments.size() );
+		assertEquals( TCPFlags.SYN|TCPFlags.ACK, responseSegments.get(1).flags );
+		tsh.advanceTime( t + TCPSegmentHandler.INITIAL_RTO_MILLIS + 10 );
+		assertEquals( 2, responseSegments.size() );
+		tsh.advanceTime( t += 2 * TCPSegmentHandler.INITIAL_RTO_MILLIS + 10 );
+		assertEquals( 3, responseSegments.size() );
+		
+		// ...until we run out of patience
+		for( int i=0; i<TCPSegmentHandler.MAX_RETRANSMITS; ++i ) {
+			tsh.advanceTime( t += TCPSegmentHandler.MAX_RTO_MILLIS + 10 );
+		}
+		assertEquals( 0, tsh.connections.size() );
+		assertEquals( 1 + TCPSegmentHandler.MAX_RETRANSMITS, responseSegments.size() );
+	}
+	
+	public void testRetransmitLostData() throws Exception {
+		long t = tsh.timers.getCurrentTime();
+		tsh.give( TCPSegment.create( sap, 1000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		int zSequence = responseSegments.get(0).sequenceNumber + 1;
+		tsh.give( TCPSegment.create( sap, 1001, zSequence, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		assertEquals( 2, responseSegments.size() );
+		
+		// The echo is 'lost'; it gets sent again
+		tsh.advanceTime( t + TCPSegmentHandler.INITIAL_RTO_MILLIS + 10 );
+		assertEquals( 3, responseSegments.size() );
+		assertEquals( helloChunk, segPayload(responseSegments.get(2)) );
+		assertEquals( zSequence, responseSegments.get(2).sequenceNumber );
+		
+		// Once it's acked, nothing more gets sent
+		tsh.give( TCPSegment.create( sap, 1007, zSequence + 6, TCPFlags.ACK, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		t = tsh.timers.getCurrentTime();
+		tsh.advanceTime( t + 30000 );
+		assertEquals( 3, responseSegments.size() );
+		
+		// Then a keepalive probe, which is answered...
+		tsh.advanceTime( t += TCPSegmentHandler.KEEPALIVE_IDLE_MILLIS + 10 );
+		assertEquals( 4, responseSegments.size() );
+		assertEquals( zSequence + 5, responseSegments.get(3).sequenceNumber );
+		tsh.give( TCPSegment.create( sap, 1007, zSequence + 6, TCPFlags.ACK, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertEquals( 1, tsh.connections.size() );
+		
+		// ...but with nothing else going on it's eventually dropped
+		tsh.advanceTime( t + TCPSegmentHandler.IDLE_TIMEOUT_MILLIS );
+		assertEquals( 0, tsh.connections.size() );
+		assertEquals( TCPFlags.RST|TCPFlags.ACK, responseSegments.get(responseSegments.size()-1).flags );
+	}
+	
+	protected static ByteChunk chunk( String s, int from, int to ) {
+		ByteChunk c = BlobUtil.byteChunk( s );
+		return new SimpleByteChunk( c.getBuffer(), c.getOffset() + from, to - from );
+	}
+	
+	protected void sendData( int seq, int ack, int flags, ByteChunk data ) throws Exception {
+		tsh.give( TCPSegment.create( sap, seq, ack, flags, 10000, data.getBuffer(), data.getOffset(), data.getSize() ) );
+	}
+	
+	/** Collect everything echoed back, in sequence order, skipping duplicates */
+	protected String echoedData( int firstSeq ) {
+		StringBuilder sb = new StringBuilder();
+		for( TCPSegment seg : responseSegments ) {
+			int start = seg.sequenceNumber - firstSeq;
+			if( start == sb.length() ) sb.append( new String( seg.buffer, seg.dataOffset, seg.dataSize ) );
+			else if( start < sb.length() && start + seg.dataSize > sb.length() ) {
+				sb.append( new String( seg.buffer, seg.dataOffset + sb.length() - start, start + seg.dataSize - sb.length() ) );
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Segments arriving out of order, overlapping, and with sequence numbers
+	 * wrapping around from Integer.MAX_VALUE and from -1 should be put
+	 * back together.
+	 */
+	public void testReassembly() throws Exception {
+		String text = "The quick brown fox jumps over the lazy dog";
+		for( int initSeq : new int[]{ 1000, Integer.MAX_VALUE - 10, -10 } ) {
+			setUp();
+			sendData( initSeq, 0, TCPFlags.SYN, SimpleByteChunk.EMPTY );
+			int z = responseSegments.get(0).sequenceNumber + 1;
+			int s = initSeq + 1;
+			
+			sendData( s + 20, z, TCPFlags.ACK, chunk(text, 20, 30) );
+			sendData( s + 35, z, TCPFlags.ACK|TCPFlags.FIN, chunk(text, 35, text.length()) );
+			sendData( s + 10, z, TCPFlags.ACK, chunk(text, 10, 25) );
+			// Nothing's been delivered yet; just duplicate acks
+			assertEquals( "", echoedData(z) );
+			assertEquals( s, responseSegments.get(responseSegments.size()-1).ackNumber );
+			
+			// Filling the first gap delivers up to the next one
+			sendData( s, z, TCPFlags.ACK, chunk(text, 0, 12) );
+			assertEquals( text.substring(0, 30), echoedData(z) );
+			assertEquals( s + 30, responseSegments.get(responseSegments.size()-1).ackNumber );
+			
+			// Filling the last one delivers the rest, and the FIN
+			sendData( s + 28, z, TCPFlags.ACK, chunk(text, 28, 36) );
+			assertEquals( text, echoedData(z) );
+			TCPSegment last = responseSegments.get(responseSegments.size()-1);
+			assertEquals( s + text.length() + 1, last.ackNumber );
+			assertTrue( (last.flags & TCPFlags.FIN) != 0 );
+			assertEquals( 0, tsh.reassemblyMemoryUsed );
+		}
+	}
+	
+	public void testReassemblyMemoryLimit() throws Exception {
+		tsh.maxReassemblyMemory = 100;
+		sendData( 1000, 0, TCPFlags.SYN, SimpleByteChunk.EMPTY );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		sendData( 1011, z, TCPFlags.ACK, chunk("0123456789", 0, 10) );
+		// Over the limit; dropped
+		sendData( 1031, z, TCPFlags.ACK, chunk("0123456789", 0, 10) );
+		assertEquals( 10 + ReassemblyQueue.BLOCK_OVERHEAD, tsh.reassemblyMemoryUsed );
+		
+		// Closing the connection frees it up
+		sendData( 1001, z, TCPFlags.RST, SimpleByteChunk.EMPTY );
+		assertEquals( 0, tsh.reassemblyMemoryUsed );
+	}
+	
+	protected static TCPSegment segmentWithOptions( SocketAddressPair sap, int seq, int ack, int flags, int window, TCPOptions opts, ByteChunk data ) {
+		byte[] optBuf = new byte[40];
+		int optSize = opts.encode( optBuf, 0 );
+		byte[] buf = new byte[TCPSegment.dataOffsetV6(optSize) + data.getSize()];
+		int size = TCPSegment.encodeV6( buf, 0, sap, seq, ack, flags, window, optBuf, 0, optSize, data.getBuffer(), data.getOffset(), data.getSize() );
+		return TCPSegment.parse( IPPacket.parse( buf, 0, size ) );
+	}
+	
+	protected static TCPOptions parseOptions( TCPSegment seg ) {
+		TCPOptions opts = new TCPOptions();
+		assertTrue( opts.parse( seg.buffer, seg.optionsOffset, seg.optionsSize ) );
+		return opts;
+	}
+	
+	public void testMssAndWindowScaleNegotiation() throws Exception {
+		TCPOptions synOpts = new TCPOptions();
+		synOpts.mss = 100;
+		synOpts.windowScale = 2;
+		tsh.give( segmentWithOptions( sap, 1000, 0, TCPFlags.SYN, 1000, synOpts, SimpleByteChunk.EMPTY ) );
+		TCPSegment synAck = responseSegments.get(0);
+		TCPOptions ourOpts = parseOptions( synAck );
+		assertEquals( tsh.localMss, ourOpts.mss );
+		assertEquals( TCPSegmentHandler.RECEIVE_WINDOW_SCALE, ourOpts.windowScale );
+		// Not scaled in the SYN-ACK
+		assertEquals( 0xFFFF, synAck.windowSize );
+		int z = synAck.sequenceNumber + 1;
+		
+		// 250 bytes should come back in 100-byte segments,
+		// limited to the 200 bytes their (scaled) window allows
+		String text = "";
+		while( text.length() < 250 ) text += "0123456789";
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 50, BlobUtil.byteChunk(text).getBuffer(), 0, 250 ) );
+		assertEquals( 3, responseSegments.size() );
+		TCPSegment echo = responseSegments.get(1);
+		assertEquals( 100, echo.dataSize );
+		assertEquals( (TCPSegmentHandler.RECEIVE_BUFFER_SIZE - 250) >> TCPSegmentHandler.RECEIVE_WINDOW_SCALE, echo.windowSize );
+		assertEquals( 100, responseSegments.get(2).dataSize );
+		tsh.give( TCPSegment.create( sap, 1251, z + 200, TCPFlags.ACK, 0, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		// Now their window's closed
+		assertEquals( 3, responseSegments.size() );
+		tsh.give( TCPSegment.create( sap, 1251, z + 200, TCPFlags.ACK, 50, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertEquals( 4, responseSegments.size() );
+		assertEquals( 50, responseSegments.get(3).dataSize );
+		assertEquals( z + 200, responseSegments.get(3).sequenceNumber );
+	}
+	
+	public void testDefaultMss() throws Exception {
+		tsh.give( TCPSegment.create( sap, 1000, 0, TCPFlags.SYN, 65535, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		TCPSegment synAck = responseSegments.get(0);
+		// No window scaling, since they didn't ask for it
+		assertEquals( -1, parseOptions( synAck ).windowScale );
+		int z = synAck.sequenceNumber + 1;
+		byte[] data = new byte[2000];
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 65535, data, 0, data.length ) );
+		assertEquals( TCPSegmentHandler.DEFAULT_IP6_MSS, responseSegments.get(1).dataSize );
+		assertEquals( 0xFFFF, responseSegments.get(1).windowSize );
+	}
+	
+	public void testSackBlocksReported() throws Exception {
+		TCPOptions synOpts = new TCPOptions();
+		synOpts.sackPermitted = true;
+		tsh.give( segmentWithOptions( sap, 1000, 0, TCPFlags.SYN, 10000, synOpts, SimpleByteChunk.EMPTY ) );
+		assertTrue( parseOptions( responseSegments.get(0) ).sackPermitted );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		
+		sendData( 1011, z, TCPFlags.ACK, chunk("0123456789", 0, 5) );
+		sendData( 1031, z, TCPFlags.ACK, chunk("0123456789", 0, 5) );
+		sendData( 1016, z, TCPFlags.ACK, chunk("0123456789", 0, 5) );
+		TCPSegment dupAck = responseSegments.get(responseSegments.size()-1);
+		assertEquals( 1001, dupAck.ackNumber );
+		TCPOptions opts = parseOptions( dupAck );
+		// Most recent first, and adjacent pieces reported as one block
+		assertEquals( 2, opts.sackBlockCount );
+		assertEquals( 1011, opts.sackBlocks[0] );
+		assertEquals( 1021, opts.sackBlocks[1] );
+		assertEquals( 1031, opts.sackBlocks[2] );
+		assertEquals( 1036, opts.sackBlocks[3] );
+	}
+	
+	public void testSackedDataNotResent() throws Exception {
+		TCPOptions synOpts = new TCPOptions();
+		synOpts.sackPermitted = true;
+		synOpts.mss = 10;
+		tsh.give( segmentWithOptions( sap, 1000, 0, TCPFlags.SYN, 10000, synOpts, SimpleByteChunk.EMPTY ) );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		byte[] data = new byte[200];
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 10000, data, 0, data.length ) );
+		// An initial window's worth
+		assertEquals( 11, responseSegments.size() );
+		TCPSegment last = responseSegments.get(responseSegments.size()-1);
+		assertEquals( z + 90, last.sequenceNumber );
+		
+		// The second segment got lost
+		TCPOptions sack = new TCPOptions();
+		sack.addSackBlock( z + 20, z + 50 );
+		tsh.give( segmentWithOptions( sap, 1201, z + 10, TCPFlags.ACK, 10000, sack, SimpleByteChunk.EMPTY ) );
+		TCPSegment resent = responseSegments.get(11);
+		assertEquals( z + 10, resent.sequenceNumber );
+		assertEquals( 10, resent.dataSize );
+		
+		// Then it's on to new stuff (as much as CUBIC's shrunken window
+		// allows), not what they've got
+		for( int i=12; i<responseSegments.size(); ++i ) {
+			assertTrue( responseSegments.get(i).sequenceNumber - (z + 100) >= 0 );
+		}
+	}
+	
+	protected TCPSegmentHandler.TCPSession session() {
+		return tsh.connections.get( new FlowKey().set( sap ) );
+	}
+	
+	public void testRoundTripTimeFromTimestamps() throws Exception {
+		tsh.stats = new ResponderStats();
+		long t = tsh.timers.getCurrentTime();
+		TCPOptions opts = new TCPOptions();
+		opts.hasTimestamps = true;
+		opts.timestampValue = 5000;
+		tsh.give( segmentWithOptions( sap, 1000, 0, TCPFlags.SYN, 10000, opts, SimpleByteChunk.EMPTY ) );
+		TCPOptions synAckOpts = parseOptions( responseSegments.get(0) );
+		assertTrue( synAckOpts.hasTimestamps );
+		assertEquals( 5000, synAckOpts.timestampEcho );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		
+		tsh.advanceTime( t + 300 );
+		opts.timestampValue = 5001;
+		opts.timestampEcho = synAckOpts.timestampValue;
+		tsh.give( segmentWithOptions( sap, 1001, z, TCPFlags.ACK, 10000, opts, helloChunk ) );
+		assertEquals( 300, session().rtt.getSmoothedRtt() );
+		// srtt + 4 * rttvar, where rttvar starts at half the first sample
+		assertEquals( 900, session().rtt.getRto() );
+		// Counted while the connection's still open
+		assertEquals( 1L << 29, tsh.stats.getTcpRoundTripTimeMedian() );
+		TCPSegment echo = responseSegments.get(1);
+		assertEquals( helloChunk, segPayload(echo) );
+		assertEquals( 5001, parseOptions( echo ).timestampEcho );
+	}
+	
+	public void testRoundTripTimeWithoutTimestamps() throws Exception {
+		long t = tsh.timers.getCurrentTime();
+		tsh.give( TCPSegment.create( sap, 1000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertFalse( parseOptions( responseSegments.get(0) ).hasTimestamps );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		tsh.advanceTime( t + 40 );
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		assertEquals( 40, session().rtt.getSmoothedRtt() );
+		assertEquals( TCPSegmentHandler.MIN_RTO_MILLIS, session().rtt.getRto() );
+	}
+	
+	public void testDelayedAck() throws Exception {
+		long t = tsh.timers.getCurrentTime();
+		// Their window's closed, so nothing gets echoed that acks could go along with.
+		// With an MSS of 6, each "Hello." is a full-sized segment.
+		TCPOptions synOpts = new TCPOptions();
+		synOpts.mss = 6;
+		tsh.give( segmentWithOptions( sap, 1000, 0, TCPFlags.SYN, 0, synOpts, SimpleByteChunk.EMPTY ) );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		byte[] hello = helloChunk.getBuffer();
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 0, hello, helloChunk.getOffset(), 6 ) );
+		assertEquals( 1, responseSegments.size() );
+		// Every second full-sized segment gets acked right away
+		tsh.give( TCPSegment.create( sap, 1007, z, TCPFlags.ACK, 0, hello, helloChunk.getOffset(), 6 ) );
+		assertEquals( 2, responseSegments.size() );
+		assertEquals( 1013, responseSegments.get(1).ackNumber );
+		// Others after a short wait
+		tsh.give( TCPSegment.create( sap, 1013, z, TCPFlags.ACK, 0, hello, helloChunk.getOffset(), 6 ) );
+		assertEquals( 2, responseSegments.size() );
+		tsh.advanceTime( t + TCPSegmentHandler.DELAYED_ACK_MILLIS + TCPSegmentHandler.TIMER_TICK_MILLIS );
+		assertEquals( 3, responseSegments.size() );
+		assertEquals( 1019, responseSegments.get(2).ackNumber );
+		assertEquals( 0, responseSegments.get(2).dataSize );
+		// Small ones don't count, however many there are
+		t = tsh.timers.getCurrentTime();
+		for( int i=0; i<3; ++i ) {
+			tsh.give( TCPSegment.create( sap, 1019 + i*2, z, TCPFlags.ACK, 0, hello, helloChunk.getOffset(), 2 ) );
+		}
+		assertEquals( 3, responseSegments.size() );
+		tsh.advanceTime( t + TCPSegmentHandler.DELAYED_ACK_MILLIS + TCPSegmentHandler.TIMER_TICK_MILLIS );
+		assertEquals( 4, responseSegments.size() );
+		assertEquals( 1025, responseSegments.get(3).ackNumber );
+	}
+	
+	public void testPureAcksFromTemplate() throws Exception {
+		TCPOptions opts = new TCPOptions();
+		opts.hasTimestamps = true;
+		opts.timestampValue = 77;
+		opts.windowScale = 0;
+		// So that each "Hello." is a full-sized segment
+		opts.mss = 6;
+		// Their window's closed, so the acks go out on their own
+		tsh.give( segmentWithOptions( sap, 1000, 0, TCPFlags.SYN, 0, opts, SimpleByteChunk.EMPTY ) );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		opts.timestampEcho = parseOptions( responseSegments.get(0) ).timestampValue;
+		long t = tsh.timers.getCurrentTime();
+		for( int i=0; i<6; ++i ) {
+			tsh.advanceTime( t += 15 );
+			opts.timestampValue = 78 + i;
+			tsh.give( segmentWithOptions( sap, 1001 + i*6, z, TCPFlags.ACK, 0, opts, helloChunk ) );
+		}
+		// Every other segment acked, each with different values patched in
+		assertEquals( 4, responseSegments.size() );
+		for( int i=1; i<4; ++i ) {
+			TCPSegment ack = responseSegments.get(i);
+			assertEquals( 0, TCPSegment.calculateChecksum( ack ) );
+			assertEquals( TCPFlags.ACK, ack.flags );
+			assertEquals( z, ack.sequenceNumber );
+			assertEquals( 1001 + i*12, ack.ackNumber );
+			assertEquals( (TCPSegmentHandler.RECEIVE_BUFFER_SIZE - i*12) >> TCPSegmentHandler.RECEIVE_WINDOW_SCALE, ack.windowSize );
+			assertEquals( 77 + i*2, parseOptions( ack ).timestampEcho );
+		}
+	}
+	
+	public void testSlowStartAndFastRetransmit() throws Exception {
+		tsh.congestionControl = CongestionControl.NEW_RENO;
+		tsh.stats = new ResponderStats();
+		TCPOptions synOpts = new TCPOptions();
+		synOpts.mss = 100;
+		tsh.give( segmentWithOptions( sap, 1000, 0, TCPFlags.SYN, 0xFFFF, synOpts, SimpleByteChunk.EMPTY ) );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		byte[] data = new byte[3000];
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 0xFFFF, data, 0, data.length ) );
+		// Initial window of 10 segments
+		assertEquals( 11, responseSegments.size() );
+		
+		// Slow start: each ack lets out one segment more than it acks
+		tsh.give( TCPSegment.create( sap, 4001, z + 100, TCPFlags.ACK, 0xFFFF, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertEquals( 13, responseSegments.size() );
+		assertEquals( z + 1100, responseSegments.get(12).sequenceNumber );
+		
+		// Three duplicate acks: resend what's missing, right away
+		for( int i=0; i<3; ++i ) {
+			tsh.give( TCPSegment.create( sap, 4001, z + 100, TCPFlags.ACK, 0xFFFF, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		}
+		assertEquals( 14, responseSegments.size() );
+		assertEquals( z + 100, responseSegments.get(13).sequenceNumber );
+		assertEquals( 100, responseSegments.get(13).dataSize );
+		assertEquals( 1, tsh.stats.getTcpFastRetransmits() );
+		
+		// Once everything's acked, the window's half what was in flight
+		tsh.give( TCPSegment.create( sap, 4001, z + 1200, TCPFlags.ACK, 0xFFFF, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		assertEquals( 20, responseSegments.size() );
+		assertEquals( z + 1200, responseSegments.get(14).sequenceNumber );
+	}
+	
+	public void testSynCookies() throws Exception {
+		tsh.synCookieThreshold = 0;
+		tsh.stats = new ResponderStats();
+		TCPOptions opts = new TCPOptions();
+		opts.mss = 1000;
+		opts.windowScale = 3;
+		opts.sackPermitted = true;
+		opts.hasTimestamps = true;
+		opts.timestampValue = 500;
+		tsh.give( segmentWithOptions( sap, 1000, 0, TCPFlags.SYN, 10000, opts, SimpleByteChunk.EMPTY ) );
+		TCPSegment synAck = responseSegments.get(0);
+		assertEquals( TCPFlags.SYN|TCPFlags.ACK, synAck.flags );
+		assertEquals( 1001, synAck.ackNumber );
+		assertEquals( 0, TCPSegment.calculateChecksum( synAck ) );
+		TCPOptions synAckOpts = parseOptions( synAck );
+		assertEquals( TCPSegmentHandler.RECEIVE_WINDOW_SCALE, synAckOpts.windowScale );
+		assertTrue( synAckOpts.sackPermitted );
+		assertEquals( 500, synAckOpts.timestampEcho );
+		// Nothing's remembered about it
+		assertEquals( 0, tsh.connections.size() );
+		int z = synAck.sequenceNumber + 1;
+		
+		// An ACK with the wrong cookie gets nowhere
+		opts.clear();
+		opts.hasTimestamps = true;
+		opts.timestampValue = 501;
+		opts.timestampEcho = synAckOpts.timestampValue;
+		tsh.give( segmentWithOptions( sap, 1001, z + 1, TCPFlags.ACK, 10000, opts, helloChunk ) );
+		assertEquals( 0, tsh.connections.size() );
+		assertEquals( 1, tsh.stats.getTcpSynCookiesRejected() );
+		
+		// The right one sets the session up with what was asked for in the SYN
+		tsh.give( segmentWithOptions( sap, 1001, z, TCPFlags.ACK, 10000, opts, helloChunk ) );
+		assertEquals( 1, tsh.stats.getTcpSynCookiesAccepted() );
+		TCPSegmentHandler.TCPSession sess = session();
+		assertNotNull( sess );
+		// 1000 rounds down to the nearest MSS that a cookie can hold
+		assertEquals( 536, sess.sendMss );
+		assertEquals( 3, sess.sendWindowScale );
+		assertTrue( sess.sackEnabled );
+		assertTrue( sess.timestampsEnabled );
+		assertEquals( 0, tsh.halfOpenSessions );
+		TCPSegment echo = responseSegments.get(1);
+		assertEquals( helloChunk, segPayload(echo) );
+		assertEquals( z, echo.sequenceNumber );
+		assertEquals( 1007, echo.ackNumber );
+	}
+	
+	public void testExpiredSynCookie() throws Exception {
+		tsh.synCookieThreshold = 0;
+		long t = tsh.timers.getCurrentTime();
+		tsh.give( TCPSegment.create( sap, 1000, 0, TCPFlags.SYN, 10000, SimpleByteChunk.EMPTY_BYTE_ARRAY, 0, 0 ) );
+		int z = responseSegments.get(0).sequenceNumber + 1;
+		tsh.advanceTime( t + SynCookies.LIFETIME_MILLIS + SynCookies.COUNTER_PERIOD_MILLIS );
+		tsh.give( TCPSegment.create( sap, 1001, z, TCPFlags.ACK, 10000, helloChunk.getBuffer(), helloChunk.getOffset(), helloChunk.getSize() ) );
+		assertEquals( 0, tsh.connections.size() );
+		assertEquals( 1, responseSegments.size() );
+	}
 }